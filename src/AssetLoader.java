@@ -0,0 +1,173 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleConsumer;
+
+// Decodes every image the game draws on a pool of Value.AssetLoaderThreads workers, one task per
+// image, and scales each to the tile size on the same worker, so GameMap, TileSetting and Player
+// only copy finished images into the SpriteAtlas. Scaled images are kept in a SpriteCache, so after
+// the first launch most are read back without decoding. Images come in groups (tiles, fences,
+// player frames) and how long each group took is printed once everything is loaded.
+public class AssetLoader {
+
+    // Images scaled the same way, timed together
+    private static final class Group {
+        final String name;
+        final String[] paths;
+        final boolean smooth; // Bilinear rather than nearest neighbour scaling
+        final LongAdder workNanos = new LongAdder(); // Summed over the workers
+        final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+        final AtomicInteger cached = new AtomicInteger(); // Images read from the SpriteCache
+
+        Group(String name, String[] paths, boolean smooth) {
+            this.name = name;
+            this.paths = paths;
+            this.smooth = smooth;
+        }
+    }
+
+    private final List<Group> groups = new ArrayList<>();
+    private final SpriteCache cache = new SpriteCache(Value.SpriteCachePath);
+    private final Map<String, BufferedImage> images = new ConcurrentHashMap<>(); // By path, only those that loaded
+    private volatile boolean loaded;
+
+    public AssetLoader() {
+        List<String> tiles = new ArrayList<>(List.of(Value.tilesheetPaths));
+        tiles.addAll(List.of(Value.waterAnimationPaths));
+        groups.add(new Group("tiles", tiles.toArray(new String[0]), false));
+        groups.add(new Group("fences", Value.fencesheetPaths, false));
+        groups.add(new Group("player", Player.imagePaths(), true)); // Smooth like the atlas drew them before
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // Loads every image and returns once all are done. progress, if given, is told the fraction of
+    // images finished, from the worker threads.
+    public void load(DoubleConsumer progress) {
+        long start = System.nanoTime();
+        ImageIO.setUseCache(false); // Decode in memory, not through temporary files
+
+        int total = 0;
+        for (Group group : groups) total += group.paths.length;
+        int threads = Math.max(1, Math.min(total, Value.AssetLoaderThreads));
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "asset-loader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        AtomicInteger done = new AtomicInteger();
+        List<Future<?>> tasks = new ArrayList<>();
+        for (Group group : groups) {
+            for (String path : group.paths) {
+                int count = total;
+                tasks.add(pool.submit(() -> {
+                    loadImage(group, path);
+                    if (progress != null) progress.accept((double) done.incrementAndGet() / count);
+                }));
+            }
+        }
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        pool.shutdown();
+        cache.prune();
+        loaded = true;
+        printReport(total, threads, System.nanoTime() - start);
+    }
+
+    // The loaded image for each path, scaled to the tile size; null for any that failed to load
+    public BufferedImage[] get(String[] paths) {
+        BufferedImage[] result = new BufferedImage[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            result[i] = images.get(paths[i]);
+        }
+        return result;
+    }
+
+    private void loadImage(Group group, String path) {
+        long start = System.nanoTime();
+        group.firstStart.accumulateAndGet(start, Math::min);
+        URL imageUrl = AssetLoader.class.getResource(path);
+        try {
+            if (imageUrl == null) {
+                System.err.println("Image not found: " + path);
+            } else {
+                byte[] source;
+                try (InputStream in = imageUrl.openStream()) {
+                    source = in.readAllBytes();
+                }
+                String key = cache.key(source, group.smooth);
+                BufferedImage image = cache.read(key);
+                if (image != null) {
+                    group.cached.incrementAndGet();
+                    images.put(path, image);
+                } else {
+                    BufferedImage original = ImageIO.read(new ByteArrayInputStream(source));
+                    if (original == null) {
+                        System.err.println("Failed to read image: " + path);
+                    } else {
+                        image = scale(original, group.smooth);
+                        cache.write(key, image);
+                        images.put(path, image);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("IOException while reading image: " + path);
+            e.printStackTrace();
+        }
+        long end = System.nanoTime();
+        group.workNanos.add(end - start);
+        group.lastEnd.accumulateAndGet(end, Math::max);
+    }
+
+    // Scaled once here, packing into the atlas is then a plain copy
+    private static BufferedImage scale(BufferedImage image, boolean smooth) {
+        int size = Value.TileSize;
+        BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = scaled.createGraphics();
+        if (smooth) {
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        g2d.drawImage(image, 0, 0, size, size, null);
+        g2d.dispose();
+        return scaled;
+    }
+
+    // Wall time per group from its first image started to its last finished, and the work it took
+    private void printReport(int total, int threads, long nanos) {
+        System.out.printf("Loaded %d images in %.1f ms on %d threads%n", total, nanos / 1e6, threads);
+        for (Group group : groups) {
+            if (group.paths.length == 0) continue;
+            System.out.printf("  %-7s %3d images (%d cached) %7.1f ms, %7.1f ms loading%n", group.name, group.paths.length,
+                    group.cached.get(), (group.lastEnd.get() - group.firstStart.get()) / 1e6, group.workNanos.sum() / 1e6);
+        }
+    }
+}
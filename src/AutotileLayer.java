@@ -0,0 +1,139 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Precomputed autotile layer on top of a tile layer.
+// For every tile that belongs to an autotile set, one byte holds a 4-bit mask of which
+// neighbours belong to the same set (TOP, BOTTOM, LEFT, RIGHT). Each set maps the 16
+// masks to one of its images through a lookup table, so drawing needs no neighbour checks.
+// Masks are computed per chunk when first drawn and only the 3x3 neighbourhood is updated
+// when a tile changes.
+public class AutotileLayer {
+
+    public static final int TOP = 1, BOTTOM = 2, LEFT = 4, RIGHT = 8;
+
+    private static final byte NONE = -1; // Tile is not part of any autotile set
+
+    // One autotile set: its images and which image to use for each neighbour mask
+    public static class Tileset {
+        final Sprite[] images;
+        final byte[] maskToImage;
+
+        public Tileset(Sprite[] images, byte[] maskToImage) {
+            if (maskToImage.length != 16) {
+                throw new IllegalArgumentException("An autotile lookup table needs 16 entries");
+            }
+            this.images = images;
+            this.maskToImage = maskToImage;
+        }
+    }
+
+    private final ChunkManager layer;
+    private final int chunkSize;
+    private Tileset[] tilesets = new Tileset[0]; // Indexed by tile ID
+    private Tileset defaultTileset; // Used for non-zero tile IDs without their own set
+
+    private final LinkedHashMap<Long, byte[]> masks;
+    private long lastKey = Long.MIN_VALUE;
+    private byte[] lastMasks;
+
+    public AutotileLayer(ChunkManager layer) {
+        this.layer = layer;
+        this.chunkSize = layer.getChunkSize();
+        this.masks = new LinkedHashMap<>(Value.MaxLoadedChunks * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                boolean evict = size() > Value.MaxLoadedChunks;
+                if (evict && eldest.getValue() == lastMasks) {
+                    lastKey = Long.MIN_VALUE;
+                    lastMasks = null;
+                }
+                return evict;
+            }
+        };
+    }
+
+    // Uses the given set for every tile with this ID
+    public void register(int tileID, Tileset tileset) {
+        if (tileID >= tilesets.length) {
+            Tileset[] grown = new Tileset[tileID + 1];
+            System.arraycopy(tilesets, 0, grown, 0, tilesets.length);
+            tilesets = grown;
+        }
+        tilesets[tileID] = tileset;
+        clear();
+    }
+
+    // Uses the given set for every non-zero tile ID that has not been registered
+    public void setDefault(Tileset tileset) {
+        defaultTileset = tileset;
+        clear();
+    }
+
+    // Returns the image to draw at (x, y), or null if the tile is not autotiled
+    public Sprite spriteAt(int x, int y) {
+        if (x < 0 || x >= layer.getWidth() || y < 0 || y >= layer.getHeight()) return null;
+        byte mask = chunkMasks(x / chunkSize, y / chunkSize)[(y % chunkSize) * chunkSize + x % chunkSize];
+        if (mask == NONE) return null;
+        Tileset tileset = tilesetFor(layer.getTile(x, y));
+        return tileset.images[tileset.maskToImage[mask]];
+    }
+
+    // Updates the masks around a tile whose ID has just changed
+    public void tileChanged(int x, int y) {
+        for (int ny = y - 1; ny <= y + 1; ny++) {
+            for (int nx = x - 1; nx <= x + 1; nx++) {
+                if (nx < 0 || nx >= layer.getWidth() || ny < 0 || ny >= layer.getHeight()) continue;
+                byte[] chunk = masks.get(Chunk.key(nx / chunkSize, ny / chunkSize));
+                if (chunk != null) {
+                    chunk[(ny % chunkSize) * chunkSize + nx % chunkSize] = computeMask(nx, ny);
+                }
+            }
+        }
+    }
+
+    private byte[] chunkMasks(int chunkX, int chunkY) {
+        long key = Chunk.key(chunkX, chunkY);
+        if (key == lastKey) return lastMasks;
+
+        byte[] chunk = masks.get(key);
+        if (chunk == null) {
+            chunk = new byte[chunkSize * chunkSize];
+            int baseX = chunkX * chunkSize;
+            int baseY = chunkY * chunkSize;
+            for (int row = 0; row < chunkSize; row++) {
+                for (int col = 0; col < chunkSize; col++) {
+                    chunk[row * chunkSize + col] = computeMask(baseX + col, baseY + row);
+                }
+            }
+            masks.put(key, chunk);
+        }
+        lastKey = key;
+        lastMasks = chunk;
+        return chunk;
+    }
+
+    private byte computeMask(int x, int y) {
+        Tileset tileset = tilesetFor(layer.getTile(x, y));
+        if (tileset == null) return NONE;
+
+        // Tiles outside the map read as 0, so no bounds checks are needed
+        int mask = 0;
+        if (tilesetFor(layer.getTile(x, y - 1)) == tileset) mask |= TOP;
+        if (tilesetFor(layer.getTile(x, y + 1)) == tileset) mask |= BOTTOM;
+        if (tilesetFor(layer.getTile(x - 1, y)) == tileset) mask |= LEFT;
+        if (tilesetFor(layer.getTile(x + 1, y)) == tileset) mask |= RIGHT;
+        return (byte) mask;
+    }
+
+    private Tileset tilesetFor(int tileID) {
+        if (tileID == 0) return null;
+        if (tileID > 0 && tileID < tilesets.length && tilesets[tileID] != null) return tilesets[tileID];
+        return defaultTileset;
+    }
+
+    private void clear() {
+        masks.clear();
+        lastKey = Long.MIN_VALUE;
+        lastMasks = null;
+    }
+}
@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Capacity test for GameServer. Headless bots on loopback play like real clients: they join,
+// random-walk with one INPUT per game loop tick, acknowledge snapshots and ping twice a second.
+// Measured, per second and for the whole run:
+// - round trip, from PING to PONG;
+// - fan-out, from a bot sending an input to another bot seeing it applied in a snapshot, which is
+//   a move's whole way through the server including the wait for the next tick;
+// - frames and bytes each way;
+// - server CPU (this process minus the bot threads) and heap, when the server runs in this JVM.
+// Bots can be added in steps to find the count at which latency collapses. Each second is a row
+// of the CSV file and the run is summed up in the JSON file, to compare server modes.
+// A server in this JVM lets bots join anywhere in SPAWN_AREA, so only some are within each
+// other's interest radius; a server named by address puts them all at its spawn.
+//   java BotHarness [--bots 1000] [--seconds 30] [--server nio|virtual|host:port] [--threads 1]
+//                   [--ramp-step 0] [--ramp-seconds 5] [--csv file] [--json file]
+public class BotHarness {
+
+    private static final long PING_INTERVAL = 500_000_000L;
+    private static final long WARMUP = 2_000_000_000L; // After the last bots join, before the summary counts
+    private static final int SPAWN_AREA = 300; // Tiles per side that bots join in, with a server in this JVM
+    private static final int INPUT_HISTORY = 256; // Send times kept per bot for fan-out, 4 s of inputs
+
+    private static final class Bot {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocateDirect(Protocol.MAX_FRAME_SIZE); // Direct, so the heap is left to the server
+        final ByteBuffer out = ByteBuffer.allocateDirect(256);
+        final long[] inputSentAt = new long[INPUT_HISTORY]; // By seq; read by other bots' threads
+        volatile int seq;
+        int entity = -1;
+        int buttons, lastAcked = Protocol.NO_BASELINE;
+        long nextInput, nextPing, nextTurn;
+
+        Bot(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    // Drives a share of the bots from one selector; its counters are read by the main thread
+    private final class BotThread implements Runnable {
+        final Selector selector = Selector.open();
+        final Queue<Bot> added = new ConcurrentLinkedQueue<>();
+        final List<Bot> bots = new ArrayList<>();
+        final Random random = new Random();
+        final LatencyHistogram roundTrips = new LatencyHistogram(), fanOut = new LatencyHistogram(); // Guarded by this
+        volatile long framesSent, bytesSent, framesReceived, bytesReceived;
+        volatile int disconnected;
+        Thread thread;
+
+        BotThread() throws IOException {
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(1);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                Bot bot;
+                while ((bot = added.poll()) != null) register(bot);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    read((Bot) key.attachment(), key);
+                }
+
+                long now = System.nanoTime();
+                for (Bot b : bots) {
+                    if (b.channel.isOpen()) play(b, now);
+                }
+            }
+        }
+
+        private void register(Bot bot) {
+            try {
+                bot.channel.register(selector, SelectionKey.OP_READ, bot);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            long now = System.nanoTime();
+            bot.nextInput = now + random.nextInt((int) inputNanos);
+            bot.nextPing = now + random.nextInt((int) PING_INTERVAL);
+            Protocol.writeJoin(bot.out, 0, random.nextInt(SPAWN_AREA) * Value.TileSize, random.nextInt(SPAWN_AREA) * Value.TileSize);
+            framesSent++;
+            bots.add(bot);
+            write(bot);
+        }
+
+        // Random walk: a new direction, or standing still, every half to two seconds
+        private void play(Bot bot, long now) {
+            if (now >= bot.nextTurn) {
+                int[] directions = {0, PlayerMovement.UP, PlayerMovement.DOWN, PlayerMovement.LEFT, PlayerMovement.RIGHT,
+                        PlayerMovement.UP | PlayerMovement.LEFT, PlayerMovement.DOWN | PlayerMovement.RIGHT};
+                bot.buttons = directions[random.nextInt(directions.length)] | (random.nextInt(5) == 0 ? PlayerMovement.RUN : 0);
+                bot.nextTurn = now + 500_000_000L + random.nextInt(1_500_000_000);
+            }
+            if (now - bot.nextInput > 100_000_000L) bot.nextInput = now; // Starved: skip, do not burst
+            if (now >= bot.nextInput && bot.entity >= 0) {
+                if (hasRoom(bot, Protocol.INPUT_SIZE)) {
+                    int seq = bot.seq + 1;
+                    bot.inputSentAt[seq % INPUT_HISTORY] = now;
+                    bot.seq = seq;
+                    Protocol.writeInput(bot.out, seq, bot.buttons, 0);
+                    framesSent++;
+                }
+                bot.nextInput += inputNanos;
+            }
+            if (now >= bot.nextPing) {
+                if (hasRoom(bot, Protocol.PING_SIZE)) {
+                    Protocol.writePing(bot.out, now);
+                    framesSent++;
+                }
+                bot.nextPing += PING_INTERVAL;
+            }
+            if (bot.out.position() > 0) write(bot);
+        }
+
+        private void read(Bot bot, SelectionKey key) {
+            int count;
+            try {
+                count = bot.channel.read(bot.in);
+                if (count < 0) throw new IOException("Closed by the server");
+            } catch (IOException e) {
+                disconnect(bot, key);
+                return;
+            }
+            bytesReceived += count;
+
+            ByteBuffer in = bot.in;
+            in.flip();
+            long now = System.nanoTime();
+            int frame = 0;
+            int size;
+            while ((size = Protocol.frameSize(in, frame)) >= 0) {
+                if (size > in.capacity()) { // Not a frame GameServer sends, the stream is lost
+                    System.err.println("Bot " + bot.entity + " got a frame of " + size + " bytes, disconnecting it");
+                    disconnect(bot, key);
+                    return;
+                }
+                if (frame + size > in.limit()) break;
+                framesReceived++;
+                switch (Protocol.type(in, frame)) {
+                    case Protocol.WELCOME -> {
+                        bot.entity = Protocol.entity(in, frame);
+                        byEntity.set(bot.entity, bot);
+                    }
+                    case Protocol.PONG -> {
+                        synchronized (this) {
+                            roundTrips.record(now - Protocol.pingTime(in, frame));
+                        }
+                    }
+                    case Protocol.SNAPSHOT -> onSnapshot(bot, in, frame, now);
+                    default -> {
+                    }
+                }
+                frame += size;
+            }
+            in.position(frame);
+            in.compact();
+            if (bot.out.position() > 0) write(bot);
+        }
+
+        private void disconnect(Bot bot, SelectionKey key) {
+            disconnected++;
+            key.cancel();
+            closeQuietly(bot);
+        }
+
+        // Acks the snapshot and times every other bot's input it shows applied
+        private void onSnapshot(Bot bot, ByteBuffer in, int frame, long now) {
+            int tick = Protocol.snapshotTick(in, frame);
+            if (tick != bot.lastAcked && hasRoom(bot, Protocol.ACK_SIZE)) { // Once per tick, however many frames it took
+                bot.lastAcked = tick;
+                Protocol.writeAck(bot.out, tick);
+                framesSent++;
+            }
+
+            int entry = Protocol.firstSnapshotEntry(frame);
+            synchronized (this) {
+                for (int i = Protocol.snapshotCount(in, frame); i > 0; i--, entry += Protocol.entrySize(in, entry)) {
+                    if ((Protocol.entryFields(in, entry) & Protocol.FIELD_SEQ) == 0) continue;
+                    Bot mover = byEntity.get(Protocol.entryEntity(in, entry));
+                    if (mover == null || mover == bot) continue;
+                    int seq = Protocol.entryField(in, entry, Protocol.FIELD_SEQ);
+                    if (seq <= 0 || mover.seq - seq >= INPUT_HISTORY - 16) continue; // Send time already overwritten
+                    fanOut.record(now - mover.inputSentAt[seq % INPUT_HISTORY]);
+                }
+            }
+        }
+
+        // Frames that do not fit behind what the socket has not taken yet are dropped
+        private boolean hasRoom(Bot bot, int size) {
+            return bot.out.remaining() >= size;
+        }
+
+        // Writes what the socket takes now and keeps the rest for next time
+        private void write(Bot bot) {
+            ByteBuffer out = bot.out;
+            out.flip();
+            try {
+                bytesSent += bot.channel.write(out);
+            } catch (IOException e) {
+                out.clear();
+                return;
+            }
+            out.compact();
+        }
+    }
+
+    // Options
+    private int botCount = 1000;
+    private int seconds = 30;
+    private String server = "nio";
+    private int threadCount = 1;
+    private int rampStep;
+    private int rampSeconds = 5;
+    private Path csvPath, jsonPath;
+
+    private final long inputNanos = 1_000_000_000L / Value.TicksPerSecond;
+    private final AtomicReferenceArray<Bot> byEntity = new AtomicReferenceArray<>(0x10000);
+    private final List<BotThread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws IOException {
+        BotHarness harness = new BotHarness();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--bots" -> harness.botCount = Integer.parseInt(value);
+                case "--seconds" -> harness.seconds = Integer.parseInt(value);
+                case "--server" -> harness.server = value;
+                case "--threads" -> harness.threadCount = Math.max(1, Integer.parseInt(value));
+                case "--ramp-step" -> harness.rampStep = Integer.parseInt(value);
+                case "--ramp-seconds" -> harness.rampSeconds = Integer.parseInt(value);
+                case "--csv" -> harness.csvPath = Path.of(value);
+                case "--json" -> harness.jsonPath = Path.of(value);
+                default -> System.err.println("Unknown option " + args[i]);
+            }
+        }
+        harness.run();
+        System.exit(0);
+    }
+
+    private void run() throws IOException {
+        // Server in this JVM unless one is named by address
+        GameServer localServer = null;
+        InetSocketAddress address;
+        if (server.equals("nio") || server.equals("virtual")) {
+            localServer = new GameServer(0, Value.ServerIoThreads, server.equals("virtual"));
+            localServer.setJoinAnywhere(true);
+            localServer.start();
+            address = new InetSocketAddress("localhost", localServer.getPort());
+        } else {
+            int colon = server.lastIndexOf(':');
+            address = new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+        }
+        long heapBefore = usedHeapAfterGc();
+
+        for (int i = 0; i < threadCount; i++) {
+            BotThread botThread = new BotThread();
+            botThread.thread = new Thread(botThread, "bot-" + i);
+            botThread.thread.start();
+            threads.add(botThread);
+        }
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        LatencyHistogram intervalRoundTrips = new LatencyHistogram(), intervalFanOut = new LatencyHistogram();
+        LatencyHistogram totalRoundTrips = new LatencyHistogram(), totalFanOut = new LatencyHistogram();
+        List<String> rows = new ArrayList<>();
+        rows.add("second,bots,frames_sent_per_s,frames_received_per_s,kb_sent_per_s,kb_received_per_s,"
+                + "rtt_p50_ms,rtt_p99_ms,rtt_p999_ms,fanout_p50_ms,fanout_p99_ms,fanout_p999_ms,server_cpu_percent,heap_mb,disconnected");
+
+        int connected = 0;
+        int step = rampStep > 0 ? rampStep : botCount;
+        long start = System.nanoTime();
+        long lastStepAt = start;
+        long summaryFrom = Long.MAX_VALUE, end = Long.MAX_VALUE;
+        long[] previous = new long[4]; // Frames and bytes each way at the last row
+        long previousCpu = os.getProcessCpuTime() - botCpuTime(threadBean), previousRow = start;
+        long summaryCpu = 0, summaryStart = 0;
+        long[] summaryCounters = new long[4];
+        int lastSecond = 0;
+
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            if (connected < botCount && (connected == 0 || now - lastStepAt >= rampSeconds * 1_000_000_000L)) {
+                int target = Math.min(botCount, connected + step);
+                for (; connected < target; connected++) {
+                    SocketChannel channel = SocketChannel.open(address);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.configureBlocking(false);
+                    BotThread botThread = threads.get(connected % threadCount);
+                    botThread.added.add(new Bot(channel));
+                    botThread.selector.wakeup();
+                }
+                lastStepAt = System.nanoTime();
+                System.out.println(connected + " bots connected");
+                if (connected == botCount) {
+                    summaryFrom = lastStepAt + WARMUP;
+                    end = summaryFrom + seconds * 1_000_000_000L;
+                }
+            }
+
+            sleepUntil(start + (lastSecond + 1) * 1_000_000_000L);
+            lastSecond++;
+            now = System.nanoTime();
+
+            // One row: everything since the previous one
+            long[] counters = counters();
+            for (BotThread t : threads) {
+                synchronized (t) {
+                    intervalRoundTrips.add(t.roundTrips);
+                    intervalFanOut.add(t.fanOut);
+                    t.roundTrips.reset();
+                    t.fanOut.reset();
+                }
+            }
+            boolean summarising = now >= summaryFrom;
+            if (summarising) {
+                if (summaryStart == 0) {
+                    summaryStart = previousRow;
+                    summaryCpu = previousCpu;
+                    System.arraycopy(previous, 0, summaryCounters, 0, 4);
+                }
+                totalRoundTrips.add(intervalRoundTrips);
+                totalFanOut.add(intervalFanOut);
+            }
+            double elapsed = (now - previousRow) / 1e9;
+            long serverCpu = os.getProcessCpuTime() - botCpuTime(threadBean);
+            double cpuPercent = localServer == null ? Double.NaN : (serverCpu - previousCpu) / 1e7 / elapsed;
+            double heapMb = localServer == null ? Double.NaN
+                    : ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1048576.0;
+            String row = String.format(Locale.ROOT, "%d,%d,%.0f,%.0f,%.1f,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.1f,%.1f,%d",
+                    lastSecond, connected, (counters[0] - previous[0]) / elapsed, (counters[2] - previous[2]) / elapsed,
+                    (counters[1] - previous[1]) / 1024.0 / elapsed, (counters[3] - previous[3]) / 1024.0 / elapsed,
+                    ms(intervalRoundTrips.percentile(50)), ms(intervalRoundTrips.percentile(99)), ms(intervalRoundTrips.percentile(99.9)),
+                    ms(intervalFanOut.percentile(50)), ms(intervalFanOut.percentile(99)), ms(intervalFanOut.percentile(99.9)),
+                    cpuPercent, heapMb, disconnected());
+            rows.add(row);
+            System.out.printf(Locale.ROOT, "%3ds %6d bots  rtt p50 %8.3f p99 %8.3f ms  fan-out p50 %8.3f p99 %8.3f ms  server cpu %5.1f%%  heap %6.1f MB%n",
+                    lastSecond, connected, ms(intervalRoundTrips.percentile(50)), ms(intervalRoundTrips.percentile(99)),
+                    ms(intervalFanOut.percentile(50)), ms(intervalFanOut.percentile(99)), cpuPercent, heapMb);
+            intervalRoundTrips.reset();
+            intervalFanOut.reset();
+            previous = counters;
+            previousCpu = serverCpu;
+            previousRow = now;
+        }
+
+        // Summary of the steady part, after the last bots joined and warmed up
+        double summarySeconds = (previousRow - summaryStart) / 1e9;
+        double serverCpuPercent = localServer == null ? Double.NaN : (previousCpu - summaryCpu) / 1e7 / summarySeconds;
+        long heapAfter = localServer == null ? 0 : usedHeapAfterGc(); // Still connected
+        long gcCount = 0, gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcMillis += gc.getCollectionTime();
+        }
+        int clients = localServer == null ? -1 : localServer.getClientCount();
+        String json = String.format(Locale.ROOT, """
+                {
+                  "server": "%s",
+                  "bots": %d,
+                  "botThreads": %d,
+                  "seconds": %.1f,
+                  "inputsPerBotPerSecond": %d,
+                  "serverClients": %d,
+                  "disconnected": %d,
+                  "roundTripMs": %s,
+                  "fanOutMs": %s,
+                  "framesSentPerSecond": %.0f,
+                  "framesReceivedPerSecond": %.0f,
+                  "bytesSentPerSecond": %.0f,
+                  "bytesReceivedPerSecond": %.0f,
+                  "serverCpuPercent": %.1f,
+                  "serverHeapPerBotKB": %.1f,
+                  "gcCount": %d,
+                  "gcMillis": %d
+                }
+                """, server, botCount, threadCount, summarySeconds, Value.TicksPerSecond, clients, disconnected(),
+                toJson(totalRoundTrips), toJson(totalFanOut),
+                (previous[0] - summaryCounters[0]) / summarySeconds, (previous[2] - summaryCounters[2]) / summarySeconds,
+                (previous[1] - summaryCounters[1]) / summarySeconds, (previous[3] - summaryCounters[3]) / summarySeconds,
+                serverCpuPercent, localServer == null ? Double.NaN : (heapAfter - heapBefore) / 1024.0 / botCount, gcCount, gcMillis)
+                .replace("NaN", "null");
+        System.out.print(json);
+        if (csvPath != null) Files.write(csvPath, rows);
+        if (jsonPath != null) Files.writeString(jsonPath, json);
+
+        running = false;
+        for (BotThread t : threads) {
+            t.selector.wakeup();
+            try {
+                t.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Bot bot : t.bots) closeQuietly(bot);
+        }
+        if (localServer != null) localServer.stop();
+    }
+
+    // Frames sent, bytes sent, frames received, bytes received, over all bot threads
+    private long[] counters() {
+        long[] counters = new long[4];
+        for (BotThread t : threads) {
+            counters[0] += t.framesSent;
+            counters[1] += t.bytesSent;
+            counters[2] += t.framesReceived;
+            counters[3] += t.bytesReceived;
+        }
+        return counters;
+    }
+
+    private int disconnected() {
+        int count = 0;
+        for (BotThread t : threads) count += t.disconnected;
+        return count;
+    }
+
+    // CPU the bots and this main thread used, to leave only the server's in the process total
+    private long botCpuTime(ThreadMXBean threadBean) {
+        long total = threadBean.getCurrentThreadCpuTime();
+        for (BotThread t : threads) {
+            long cpu = threadBean.getThreadCpuTime(t.thread.threadId());
+            if (cpu > 0) total += cpu;
+        }
+        return total;
+    }
+
+    private static String toJson(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "{\"samples\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}",
+                histogram.getCount(), histogram.getMean() / 1e6, ms(histogram.percentile(50)), ms(histogram.percentile(99)),
+                ms(histogram.percentile(99.9)), ms(histogram.getMax()));
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void sleepUntil(long time) {
+        long delay;
+        while ((delay = time - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(delay / 1_000_000L, (int) (delay % 1_000_000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void closeQuietly(Bot bot) {
+        try {
+            bot.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,18 @@
+// One square block of tiles held in memory by a ChunkManager
+public class Chunk {
+
+    final int chunkX;
+    final int chunkY;
+    final short[] tiles; // chunkSize * chunkSize tile IDs, row-major
+    boolean dirty; // Changed since it was loaded, written back on eviction
+
+    Chunk(int chunkX, int chunkY, short[] tiles) {
+        this.chunkX = chunkX;
+        this.chunkY = chunkY;
+        this.tiles = tiles;
+    }
+
+    static long key(int chunkX, int chunkY) {
+        return ((long) chunkX << 32) | (chunkY & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,140 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Caches the static part of the background layer as one pre-rendered image per block of
+// Value.RenderChunkSize x Value.RenderChunkSize tiles, so drawMap blits a handful of images
+// per frame instead of one scaled drawImage per tile. Animated tiles are left out of the
+// baked image and drawn on top every frame. A block is only re-rendered after setTile
+// changes a tile inside it.
+public class ChunkImageCache {
+
+    private static class Entry {
+        final BufferedImage image;
+        int[] animatedTiles = new int[8]; // Local tile indices (row * size + col) of animated tiles
+        int animatedCount;
+        boolean valid;
+
+        Entry(BufferedImage image) {
+            this.image = image;
+        }
+    }
+
+    private final ChunkManager layer;
+    private final Sprite[] staticTiles;
+    private final int tileSize;
+    private final int chunkTiles;
+    private final int chunkPixels;
+    private final int maxEntries;
+
+    private final LinkedHashMap<Long, Entry> entries;
+    private final ArrayDeque<BufferedImage> freeImages = new ArrayDeque<>();
+
+    public ChunkImageCache(ChunkManager layer, Sprite[] staticTiles, int tileSize) {
+        this.layer = layer;
+        this.staticTiles = staticTiles;
+        this.tileSize = tileSize;
+        this.chunkTiles = Value.RenderChunkSize;
+        this.chunkPixels = chunkTiles * tileSize;
+        this.maxEntries = Value.MaxCachedChunkImages;
+        this.entries = new LinkedHashMap<>(maxEntries * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() <= ChunkImageCache.this.maxEntries) return false;
+                freeImages.push(eldest.getValue().image); // Reuse the image for the next block
+                return true;
+            }
+        };
+    }
+
+    // Draws every block that intersects the screen, with animatedFrame on top of animated tiles
+    public void draw(Graphics g, int camX, int camY, int screenWidth, int screenHeight, Sprite animatedFrame) {
+        int startX = Math.max(0, camX / chunkPixels);
+        int startY = Math.max(0, camY / chunkPixels);
+        int endX = Math.min((camX + screenWidth) / chunkPixels, (layer.getWidth() - 1) / chunkTiles);
+        int endY = Math.min((camY + screenHeight) / chunkPixels, (layer.getHeight() - 1) / chunkTiles);
+
+        for (int cy = startY; cy <= endY; cy++) {
+            for (int cx = startX; cx <= endX; cx++) {
+                Entry entry = entryFor(cx, cy);
+                int chunkX = cx * chunkPixels - camX;
+                int chunkY = cy * chunkPixels - camY;
+                g.drawImage(entry.image, chunkX, chunkY, null);
+
+                if (animatedFrame != null) {
+                    for (int i = 0; i < entry.animatedCount; i++) {
+                        int local = entry.animatedTiles[i];
+                        int tileX = chunkX + (local % chunkTiles) * tileSize;
+                        int tileY = chunkY + (local / chunkTiles) * tileSize;
+                        animatedFrame.draw(g, tileX, tileY);
+                    }
+                }
+            }
+        }
+    }
+
+    // Marks the block containing tile (x, y) for re-rendering
+    public void invalidate(int x, int y) {
+        Entry entry = entries.get(Chunk.key(x / chunkTiles, y / chunkTiles));
+        if (entry != null) {
+            entry.valid = false;
+        }
+    }
+
+    private Entry entryFor(int cx, int cy) {
+        long key = Chunk.key(cx, cy);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            BufferedImage image = freeImages.isEmpty() ? createImage() : freeImages.pop();
+            entry = new Entry(image);
+            entries.put(key, entry);
+        }
+        if (!entry.valid) {
+            render(entry, cx, cy);
+        }
+        return entry;
+    }
+
+    private void render(Entry entry, int cx, int cy) {
+        Graphics2D g2d = entry.image.createGraphics();
+        g2d.setComposite(AlphaComposite.Clear);
+        g2d.fillRect(0, 0, chunkPixels, chunkPixels);
+        g2d.setComposite(AlphaComposite.SrcOver);
+
+        entry.animatedCount = 0;
+        int baseX = cx * chunkTiles;
+        int baseY = cy * chunkTiles;
+        int rows = Math.min(chunkTiles, layer.getHeight() - baseY);
+        int cols = Math.min(chunkTiles, layer.getWidth() - baseX);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int tileType = layer.getTile(baseX + col, baseY + row);
+                if (isAnimated(tileType)) {
+                    if (entry.animatedCount == entry.animatedTiles.length) {
+                        entry.animatedTiles = Arrays.copyOf(entry.animatedTiles, entry.animatedCount * 2);
+                    }
+                    entry.animatedTiles[entry.animatedCount++] = row * chunkTiles + col;
+                } else if (tileType >= 0 && tileType < staticTiles.length) {
+                    staticTiles[tileType].draw(g2d, col * tileSize, row * tileSize);
+                }
+            }
+        }
+        g2d.dispose();
+        entry.valid = true;
+    }
+
+    private static boolean isAnimated(int tileType) {
+        for (int id : Value.anitile) {
+            if (id == tileType) return true;
+        }
+        return false;
+    }
+
+    private BufferedImage createImage() {
+        // Compatible images match the screen format, so Java2D can keep them in video memory
+        return SpriteAtlas.createCompatibleImage(chunkPixels, chunkPixels);
+    }
+}
@@ -0,0 +1,175 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps a bounded set of chunks from a ChunkedMap in memory.
+// Chunks around the player are loaded ahead of time on a background thread, and the
+// least recently used chunks are evicted once maxChunks is reached. Evicted chunks that
+// were changed are written back into the map before they are dropped.
+public class ChunkManager {
+
+    private final ChunkedMap map;
+    private final int chunkSize;
+    private final int maxChunks;
+
+    private final LinkedHashMap<Long, Chunk> chunks;
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService loader;
+
+    // Last chunk read, most getTile calls hit it without taking the lock
+    private volatile Chunk lastChunk;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ChunkManager(ChunkedMap map, int maxChunks) {
+        this.map = map;
+        this.chunkSize = map.getChunkSize();
+        this.maxChunks = maxChunks;
+        this.chunks = new LinkedHashMap<>(maxChunks * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Chunk> eldest) {
+                if (size() <= ChunkManager.this.maxChunks) return false;
+                evict(eldest.getValue());
+                return true;
+            }
+        };
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "chunk-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getWidth() { return map.getWidth(); }
+    public int getHeight() { return map.getHeight(); }
+    public int getChunkSize() { return chunkSize; }
+    public int getChunksX() { return map.getChunksX(); }
+    public int getChunksY() { return map.getChunksY(); }
+
+    // Returns the tile ID at (x, y), or 0 outside the map
+    public int getTile(int x, int y) {
+        if (x < 0 || x >= map.getWidth() || y < 0 || y >= map.getHeight()) return 0;
+        Chunk chunk = chunkAt(x / chunkSize, y / chunkSize);
+        return chunk.tiles[(y % chunkSize) * chunkSize + x % chunkSize];
+    }
+
+    public void setTile(int x, int y, int tileID) {
+        if (x < 0 || x >= map.getWidth() || y < 0 || y >= map.getHeight()) return;
+        synchronized (chunks) {
+            Chunk chunk = loadedChunk(x / chunkSize, y / chunkSize);
+            chunk.tiles[(y % chunkSize) * chunkSize + x % chunkSize] = (short) tileID;
+            chunk.dirty = true;
+        }
+    }
+
+    // Copies all chunkSize * chunkSize tiles of a chunk into dst, rows first
+    public void copyChunk(int chunkX, int chunkY, short[] dst) {
+        synchronized (chunks) {
+            System.arraycopy(loadedChunk(chunkX, chunkY).tiles, 0, dst, 0, chunkSize * chunkSize);
+        }
+    }
+
+    // Replaces every tile of a chunk, laid out as copyChunk gives them
+    public void replaceChunk(int chunkX, int chunkY, short[] src) {
+        synchronized (chunks) {
+            Chunk chunk = loadedChunk(chunkX, chunkY);
+            System.arraycopy(src, 0, chunk.tiles, 0, chunkSize * chunkSize);
+            chunk.dirty = true;
+        }
+    }
+
+    // Queues background loads for every chunk within radius chunks of the given tile
+    public void requestAround(int tileX, int tileY, int radius) {
+        int centerX = tileX / chunkSize;
+        int centerY = tileY / chunkSize;
+        for (int cy = Math.max(0, centerY - radius); cy <= Math.min(map.getChunksY() - 1, centerY + radius); cy++) {
+            for (int cx = Math.max(0, centerX - radius); cx <= Math.min(map.getChunksX() - 1, centerX + radius); cx++) {
+                long key = Chunk.key(cx, cy);
+                if (isLoaded(key) || !pending.add(key)) continue;
+
+                int chunkX = cx, chunkY = cy;
+                loader.execute(() -> {
+                    try {
+                        if (!isLoaded(key)) {
+                            Chunk chunk = readChunk(chunkX, chunkY);
+                            synchronized (chunks) {
+                                chunks.putIfAbsent(key, chunk);
+                            }
+                        }
+                    } finally {
+                        pending.remove(key);
+                    }
+                });
+            }
+        }
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+
+    public int getLoadedChunks() {
+        synchronized (chunks) {
+            return chunks.size();
+        }
+    }
+
+    // For reads only: lastChunk may have been evicted since it was cached, so a write through it
+    // could land in a chunk that is never written back
+    private Chunk chunkAt(int chunkX, int chunkY) {
+        Chunk chunk = lastChunk;
+        if (chunk != null && chunk.chunkX == chunkX && chunk.chunkY == chunkY) {
+            hits.increment();
+            return chunk;
+        }
+        synchronized (chunks) {
+            return loadedChunk(chunkX, chunkY);
+        }
+    }
+
+    // The chunk as it is in chunks, loading it if needed. Called with the chunks lock held, so
+    // lastChunk is set before evict can run again and clear it.
+    private Chunk loadedChunk(int chunkX, int chunkY) {
+        long key = Chunk.key(chunkX, chunkY);
+        Chunk chunk = chunks.get(key);
+        if (chunk != null) {
+            hits.increment();
+        } else {
+            // Not prefetched in time, load it on the calling thread
+            misses.increment();
+            chunk = readChunk(chunkX, chunkY);
+            chunks.put(key, chunk);
+        }
+        lastChunk = chunk;
+        return chunk;
+    }
+
+    private boolean isLoaded(long key) {
+        synchronized (chunks) {
+            return chunks.containsKey(key);
+        }
+    }
+
+    private Chunk readChunk(int chunkX, int chunkY) {
+        short[] tiles = new short[chunkSize * chunkSize];
+        map.readChunk(chunkX, chunkY, tiles);
+        return new Chunk(chunkX, chunkY, tiles);
+    }
+
+    // Called with the chunks lock held
+    private void evict(Chunk chunk) {
+        if (chunk.dirty) {
+            map.writeChunk(chunk.chunkX, chunk.chunkY, chunk.tiles);
+        }
+        if (lastChunk == chunk) {
+            lastChunk = null;
+        }
+        evictions.increment();
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Memory-mapped view of a binary tile layer written by MapConverter.
+//
+// File layout (little endian):
+//   header  (32 bytes)  magic, version, chunk size, width, height, chunksX, chunksY, index offset
+//   chunks              chunkSize * chunkSize shorts each, row-major inside the chunk
+//   index               one long file offset per chunk, chunk rows first
+//
+// Chunk offsets are always HEADER_SIZE + k * chunkBytes, so the data region can be
+// mapped in fixed windows that never split a chunk. Windows are mapped lazily the first
+// time a tile inside them is read, and the OS only pages in what is actually touched.
+public class ChunkedMap {
+
+    public static final int MAGIC = 0x4D594241; // "ABYM"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    private static final long MAX_WINDOW_BYTES = 64L * 1024 * 1024; // 64 MB per mapped window
+
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final int width;
+    private final int height;
+    private final int chunksX;
+    private final int chunksY;
+    private final int chunkBytes;
+    private final long windowBytes;
+
+    private final LongBuffer index;
+    private final AtomicReferenceArray<ShortBuffer> windows;
+
+    private ChunkedMap(FileChannel channel, int chunkSize, int width, int height, int chunksX, int chunksY,
+                       LongBuffer index, long dataBytes) {
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+        this.width = width;
+        this.height = height;
+        this.chunksX = chunksX;
+        this.chunksY = chunksY;
+        this.chunkBytes = chunkSize * chunkSize * Short.BYTES;
+        this.index = index;
+
+        long chunksPerWindow = Math.max(1, MAX_WINDOW_BYTES / Math.max(1, chunkBytes));
+        this.windowBytes = chunksPerWindow * chunkBytes;
+        this.windows = new AtomicReferenceArray<>((int) ((dataBytes + windowBytes - 1) / windowBytes));
+    }
+
+    // Opens a map file. Pages are mapped copy-on-write, so setTile only changes this
+    // process's view of the map and never the file on disk.
+    public static ChunkedMap open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // keep reading until the header is complete
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                throw new IOException("Not a chunked map file: " + path);
+            }
+            if (header.getShort(4) != VERSION) {
+                throw new IOException("Unsupported map version " + header.getShort(4) + ": " + path);
+            }
+            int chunkSize = header.getShort(6);
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+            int chunksX = header.getInt(16);
+            int chunksY = header.getInt(20);
+            long indexOffset = header.getLong(24);
+
+            long indexBytes = (long) chunksX * chunksY * Long.BYTES;
+            LongBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+
+            return new ChunkedMap(channel, chunkSize, width, height, chunksX, chunksY, index, indexOffset - HEADER_SIZE);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // A 0x0 map, used when a layer fails to load
+    public static ChunkedMap empty() {
+        return new ChunkedMap(null, Value.ChunkSize, 0, 0, 0, 0, LongBuffer.allocate(0), 0);
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public int getChunkSize() { return chunkSize; }
+    public int getChunksX() { return chunksX; }
+    public int getChunksY() { return chunksY; }
+
+    // Returns the tile ID at (x, y), or 0 outside the map
+    public int getTile(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) return 0;
+        long offset = chunkOffset(x / chunkSize, y / chunkSize);
+        return window(offset).get(tileIndex(offset, x % chunkSize, y % chunkSize));
+    }
+
+    public void setTile(int x, int y, int tileID) {
+        if (x < 0 || x >= width || y < 0 || y >= height) return;
+        long offset = chunkOffset(x / chunkSize, y / chunkSize);
+        window(offset).put(tileIndex(offset, x % chunkSize, y % chunkSize), (short) tileID);
+    }
+
+    // Copies a whole chunk (chunkSize * chunkSize tiles, row-major) into dst
+    public void readChunk(int chunkX, int chunkY, short[] dst) {
+        long offset = chunkOffset(chunkX, chunkY);
+        window(offset).get(tileIndex(offset, 0, 0), dst, 0, chunkSize * chunkSize);
+    }
+
+    // Writes a whole chunk back into the (copy-on-write) mapping
+    public void writeChunk(int chunkX, int chunkY, short[] src) {
+        long offset = chunkOffset(chunkX, chunkY);
+        window(offset).put(tileIndex(offset, 0, 0), src, 0, chunkSize * chunkSize);
+    }
+
+    public void close() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long chunkOffset(int chunkX, int chunkY) {
+        return index.get(chunkY * chunksX + chunkX);
+    }
+
+    private int tileIndex(long chunkOffset, int localX, int localY) {
+        int chunkInWindow = (int) (((chunkOffset - HEADER_SIZE) % windowBytes) / chunkBytes);
+        return chunkInWindow * chunkSize * chunkSize + localY * chunkSize + localX;
+    }
+
+    private ShortBuffer window(long chunkOffset) {
+        int w = (int) ((chunkOffset - HEADER_SIZE) / windowBytes);
+        ShortBuffer window = windows.get(w);
+        if (window == null) {
+            window = mapWindow(w);
+        }
+        return window;
+    }
+
+    private synchronized ShortBuffer mapWindow(int w) {
+        if (windows.get(w) != null) return windows.get(w);
+        try {
+            long start = HEADER_SIZE + w * windowBytes;
+            long size = Math.min(windowBytes, channel.size() - start);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, start, size);
+            ShortBuffer window = mapped.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            windows.set(w, window);
+            return window;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map region " + w + " of chunked map", e);
+        }
+    }
+}
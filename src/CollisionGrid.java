@@ -0,0 +1,149 @@
+// Solid/empty flag for every tile of the collision layer packed into a long[] bitset,
+// one bit per tile and (width + 63) / 64 words per row. Queries scan whole 64-bit words,
+// never allocate and never modify any state, so they are safe to run for many entities
+// per tick. Tiles outside the map count as solid, so nothing can leave the world.
+public class CollisionGrid {
+
+    public static final int NO_HIT = Integer.MIN_VALUE; // Returned by the sweep queries when nothing is solid
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int wordsPerRow;
+    private final long[] bits;
+
+    public CollisionGrid(int width, int height, int tileSize) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.bits = new long[wordsPerRow * height];
+    }
+
+    // Builds the grid from a tile layer, non-zero tiles are solid
+    public static CollisionGrid fromMap(ChunkedMap map, int tileSize) {
+        CollisionGrid grid = new CollisionGrid(map.getWidth(), map.getHeight(), tileSize);
+        int chunkSize = map.getChunkSize();
+        short[] tiles = new short[chunkSize * chunkSize];
+        for (int chunkY = 0; chunkY < map.getChunksY(); chunkY++) {
+            for (int chunkX = 0; chunkX < map.getChunksX(); chunkX++) {
+                map.readChunk(chunkX, chunkY, tiles);
+                for (int row = 0; row < chunkSize; row++) {
+                    for (int col = 0; col < chunkSize; col++) {
+                        if (tiles[row * chunkSize + col] != 0) {
+                            grid.setSolid(chunkX * chunkSize + col, chunkY * chunkSize + row, true);
+                        }
+                    }
+                }
+            }
+        }
+        return grid;
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public int getTileSize() { return tileSize; }
+
+    public boolean isSolid(int tileX, int tileY) {
+        if (tileX < 0 || tileX >= width || tileY < 0 || tileY >= height) return true;
+        return (bits[tileY * wordsPerRow + (tileX >>> 6)] & (1L << tileX)) != 0;
+    }
+
+    public void setSolid(int tileX, int tileY, boolean solid) {
+        if (tileX < 0 || tileX >= width || tileY < 0 || tileY >= height) return;
+        int word = tileY * wordsPerRow + (tileX >>> 6);
+        if (solid) {
+            bits[word] |= 1L << tileX;
+        } else {
+            bits[word] &= ~(1L << tileX);
+        }
+    }
+
+    // Does the box [left, right) x [top, bottom), in world pixels, touch any solid tile?
+    public boolean overlapsSolid(int left, int top, int right, int bottom) {
+        if (right <= left || bottom <= top) return false;
+        return anySolid(Math.floorDiv(left, tileSize), Math.floorDiv(top, tileSize),
+                Math.floorDiv(right - 1, tileSize), Math.floorDiv(bottom - 1, tileSize));
+    }
+
+    // Is any tile in the inclusive tile rectangle solid?
+    public boolean anySolid(int col0, int row0, int col1, int row1) {
+        if (col0 < 0 || row0 < 0 || col1 >= width || row1 >= height) return true;
+        for (int row = row0; row <= row1; row++) {
+            if (rowHasSolid(row, col0, col1)) return true;
+        }
+        return false;
+    }
+
+    // First column, walking from fromCol to toCol (either direction), that has a solid
+    // tile in any row of [row0, row1]. Returns NO_HIT if every column is free.
+    public int firstSolidColumn(int row0, int row1, int fromCol, int toCol) {
+        boolean forward = fromCol <= toCol;
+        int best = NO_HIT;
+        for (int row = row0; row <= row1; row++) {
+            int hit = forward ? nextSolidInRow(row, fromCol, toCol) : previousSolidInRow(row, fromCol, toCol);
+            if (hit != NO_HIT && (best == NO_HIT || (forward ? hit < best : hit > best))) {
+                best = hit;
+                toCol = hit; // Later rows only need to beat this column
+            }
+        }
+        return best;
+    }
+
+    // First row, walking from fromRow to toRow (either direction), that has a solid
+    // tile in any column of [col0, col1]. Returns NO_HIT if every row is free.
+    public int firstSolidRow(int col0, int col1, int fromRow, int toRow) {
+        int step = fromRow <= toRow ? 1 : -1;
+        for (int row = fromRow; row != toRow + step; row += step) {
+            if (row < 0 || row >= height || col0 < 0 || col1 >= width || rowHasSolid(row, col0, col1)) {
+                return row;
+            }
+        }
+        return NO_HIT;
+    }
+
+    private boolean rowHasSolid(int row, int col0, int col1) {
+        int base = row * wordsPerRow;
+        int firstWord = col0 >>> 6;
+        int lastWord = col1 >>> 6;
+        for (int w = firstWord; w <= lastWord; w++) {
+            long word = bits[base + w];
+            if (w == firstWord) word &= -1L << col0; // Drop columns left of col0
+            if (w == lastWord) word &= -1L >>> (63 - (col1 & 63)); // Drop columns right of col1
+            if (word != 0) return true;
+        }
+        return false;
+    }
+
+    // Smallest solid column in [fromCol, toCol] of a row, columns outside the map are solid
+    private int nextSolidInRow(int row, int fromCol, int toCol) {
+        if (row < 0 || row >= height || fromCol < 0 || fromCol >= width) return fromCol;
+        int end = Math.min(toCol, width - 1);
+        int base = row * wordsPerRow;
+        for (int w = fromCol >>> 6; w <= end >>> 6; w++) {
+            long word = bits[base + w];
+            if (w == fromCol >>> 6) word &= -1L << fromCol;
+            if (word != 0) {
+                int col = (w << 6) + Long.numberOfTrailingZeros(word);
+                return col <= end ? col : NO_HIT;
+            }
+        }
+        return toCol >= width ? width : NO_HIT;
+    }
+
+    // Largest solid column in [toCol, fromCol] of a row, columns outside the map are solid
+    private int previousSolidInRow(int row, int fromCol, int toCol) {
+        if (row < 0 || row >= height || fromCol < 0 || fromCol >= width) return fromCol;
+        int end = Math.max(toCol, 0);
+        int base = row * wordsPerRow;
+        for (int w = fromCol >>> 6; w >= end >>> 6; w--) {
+            long word = bits[base + w];
+            if (w == fromCol >>> 6) word &= -1L >>> (63 - (fromCol & 63));
+            if (word != 0) {
+                int col = (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+                return col >= end ? col : NO_HIT;
+            }
+        }
+        return toCol < 0 ? -1 : NO_HIT;
+    }
+}
@@ -0,0 +1,82 @@
+// Moves axis-aligned boxes through a CollisionGrid in world pixels.
+// A displacement is applied one axis at a time (X, then Y). Along each axis the box's
+// leading edge is swept over every tile column or row it would cross, so fast movers
+// cannot tunnel through thin walls, and the box stops flush against the first solid
+// tile. Because the axes are resolved separately, a diagonal move into a wall keeps
+// the free component and slides along it. Nothing is allocated per call.
+// Only tiles block. Entities in a SpatialGrid do not, since players are the only entities and
+// a client sees other players in the past, so it would predict against the wrong positions.
+public class CollisionResolver {
+
+    private final CollisionGrid grid;
+    private final int tileSize;
+
+    public CollisionResolver(CollisionGrid grid) {
+        this.grid = grid;
+        this.tileSize = grid.getTileSize();
+    }
+
+    // Returns the furthest legal top-left corner for the box [left, left + width) x [top, top + height)
+    // after moving it by (dx, dy), packed with pack(); read it back with unpackX/unpackY.
+    public long resolve(int left, int top, int width, int height, int dx, int dy) {
+        int newLeft = sweepX(left, top, width, height, dx);
+        int newTop = sweepY(newLeft, top, width, height, dy);
+        return pack(newLeft, newTop);
+    }
+
+    public static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    public static int unpackX(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    public static int unpackY(long packed) {
+        return (int) packed;
+    }
+
+    private int sweepX(int left, int top, int width, int height, int dx) {
+        if (dx == 0) return left;
+        int row0 = Math.floorDiv(top, tileSize);
+        int row1 = Math.floorDiv(top + height - 1, tileSize);
+
+        if (dx > 0) {
+            // Columns newly entered by the right edge
+            int fromCol = Math.floorDiv(left + width - 1, tileSize) + 1;
+            int toCol = Math.floorDiv(left + width - 1 + dx, tileSize);
+            if (fromCol > toCol) return left + dx;
+            int hit = grid.firstSolidColumn(row0, row1, fromCol, toCol);
+            return hit == CollisionGrid.NO_HIT ? left + dx : hit * tileSize - width;
+        } else {
+            // Columns newly entered by the left edge
+            int fromCol = Math.floorDiv(left, tileSize) - 1;
+            int toCol = Math.floorDiv(left + dx, tileSize);
+            if (fromCol < toCol) return left + dx;
+            int hit = grid.firstSolidColumn(row0, row1, fromCol, toCol);
+            return hit == CollisionGrid.NO_HIT ? left + dx : (hit + 1) * tileSize;
+        }
+    }
+
+    private int sweepY(int left, int top, int width, int height, int dy) {
+        if (dy == 0) return top;
+        int col0 = Math.floorDiv(left, tileSize);
+        int col1 = Math.floorDiv(left + width - 1, tileSize);
+
+        if (dy > 0) {
+            // Rows newly entered by the bottom edge
+            int fromRow = Math.floorDiv(top + height - 1, tileSize) + 1;
+            int toRow = Math.floorDiv(top + height - 1 + dy, tileSize);
+            if (fromRow > toRow) return top + dy;
+            int hit = grid.firstSolidRow(col0, col1, fromRow, toRow);
+            return hit == CollisionGrid.NO_HIT ? top + dy : hit * tileSize - height;
+        } else {
+            // Rows newly entered by the top edge
+            int fromRow = Math.floorDiv(top, tileSize) - 1;
+            int toRow = Math.floorDiv(top + dy, tileSize);
+            if (fromRow < toRow) return top + dy;
+            int hit = grid.firstSolidRow(col0, col1, fromRow, toRow);
+            return hit == CollisionGrid.NO_HIT ? top + dy : (hit + 1) * tileSize;
+        }
+    }
+}
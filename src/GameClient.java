@@ -1,45 +1,275 @@
-import java.io.*;
-import java.net.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+// Connection to a GameServer using the binary frames of Protocol.
+// Outgoing frames are written into one reused buffer, incoming ones are decoded in place.
+// Snapshots arrive as deltas against a tick we acknowledged, so the last
+// Value.SnapshotHistory of them are kept to rebuild the next one from.
+// Over UDP the same frames go through a UdpTransport, whose thread then does the listening.
+// Tile edits to subscribed chunks are decoded into ChunkUpdates for the game loop to apply.
 public class GameClient {
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private SocketChannel channel;
+    private UdpTransport udp; // Instead of the channel when connected over UDP
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(64); // Fits the largest client frame
+    private volatile int entityId = -1; // Given by the server's WELCOME
+
+    // Our own player as of the newest snapshot, guarded by this
+    private int serverSeq, serverX, serverY;
+    private boolean serverStateFresh;
+
+    // Listener thread only
+    private final SnapshotRing snapshots = new SnapshotRing(Value.SnapshotHistory);
+    private Snapshot building; // Snapshot whose frames are being applied
+    private final InterpolationBuffer remotePlayers = new InterpolationBuffer();
+
+    private final Queue<ChunkUpdate> chunkUpdates = new ConcurrentLinkedQueue<>();
+
+    // A TILE_EDITS or CHUNK_DATA frame from the server
+    static final class ChunkUpdate {
+        final int chunkX, chunkY;
+        final int version; // Before the edits, or that of the tiles
+        final int[] edits; // Tile index << 16 | tileID, null for CHUNK_DATA
+        final short[] tiles; // The whole chunk, null for TILE_EDITS
+
+        ChunkUpdate(int chunkX, int chunkY, int version, int[] edits, short[] tiles) {
+            this.chunkX = chunkX;
+            this.chunkY = chunkY;
+            this.version = version;
+            this.edits = edits;
+            this.tiles = tiles;
+        }
+    }
 
     public GameClient(String serverAddress, int port) {
+        this(serverAddress, port, Value.UseUdp);
+    }
+
+    public GameClient(String serverAddress, int port, boolean useUdp) {
 
         try {
-            socket = new Socket(serverAddress, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            if (useUdp) {
+                udp = UdpTransport.client(new InetSocketAddress(serverAddress, port), new UdpTransport.Listener() {
+                    @Override
+                    public void onConnect(UdpTransport.Connection connection) {
+                    }
+
+                    @Override
+                    public void onFrame(UdpTransport.Connection connection, ByteBuffer in, int frame) {
+                        handleFrame(in, frame);
+                    }
+
+                    @Override
+                    public void onDisconnect(UdpTransport.Connection connection) {
+                        System.err.println("Lost connection to the server");
+                    }
+                });
+                return;
+            }
+            channel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
 
             // Thread to listen for server messages
-            new Thread(() -> {
-                try {
-                    String message;
-                    while ((message = in.readLine()) != null) {
-                        System.out.println("Received: " + message);
-                        // Parse and handle received position data
+            Thread listener = new Thread(this::listen, "client-listener");
+            listener.setDaemon(true);
+            listener.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    public int getEntityId() { return entityId; }
+
+    // Other players near ours, for rendering
+    public InterpolationBuffer getRemotePlayers() { return remotePlayers; }
+
+    public boolean isConnected() {
+        if (udp != null) return !udp.getServer().isClosed(); // Until the server times out
+        return channel != null && channel.isConnected();
+    }
+
+    public synchronized void sendJoin(int x, int y) {
+        sendBuffer.clear();
+        Protocol.writeJoin(sendBuffer, 0, x, y); // The server fills in our ID
+        write();
+    }
+
+    // One game loop tick of held buttons (PlayerMovement bits)
+    public synchronized void sendInput(int seq, int buttons, String animation) {
+        sendBuffer.clear();
+        Protocol.writeInput(sendBuffer, seq, buttons, Protocol.animationId(animation));
+        write();
+    }
+
+    // Copies the last input the server applied to our player and the position it ended at into
+    // out (seq, x, y). Returns false if nothing new arrived since the previous call.
+    public synchronized boolean pollServerState(int[] out) {
+        if (!serverStateFresh) return false;
+        out[0] = serverSeq;
+        out[1] = serverX;
+        out[2] = serverY;
+        serverStateFresh = false;
+        return true;
+    }
+
+    // Asks the server to edit a tile; it comes back as a ChunkUpdate once applied
+    public synchronized void sendTileChange(int tileX, int tileY, int tileID) {
+        sendBuffer.clear();
+        Protocol.writeTileChange(sendBuffer, tileX, tileY, tileID);
+        write();
+    }
+
+    // Edits to the chunk are sent to us from now on, after those since the version we have
+    public synchronized void subscribeChunk(int chunkX, int chunkY, int version) {
+        sendBuffer.clear();
+        Protocol.writeChunkSubscribe(sendBuffer, chunkX, chunkY, version);
+        write();
+    }
+
+    public synchronized void unsubscribeChunk(int chunkX, int chunkY) {
+        sendBuffer.clear();
+        Protocol.writeChunkUnsubscribe(sendBuffer, chunkX, chunkY);
+        write();
+    }
+
+    // Next chunk update in the order the server sent them, or null
+    public ChunkUpdate pollChunkUpdate() {
+        return chunkUpdates.poll();
+    }
+
+    private synchronized void sendAck(int tick) {
+        sendBuffer.clear();
+        Protocol.writeAck(sendBuffer, tick);
+        write();
+    }
+
+    public void close() {
+        if (udp != null) udp.close();
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write() {
+        sendBuffer.flip();
+        if (udp != null) {
+            ByteBuffer frame = ByteBuffer.allocate(sendBuffer.remaining()).put(sendBuffer).flip(); // Sent later, on the transport thread
+            udp.send(udp.getServer(), frame, Protocol.isReliable(Protocol.type(frame, 0)));
+            return;
+        }
+        if (channel == null) return;
+        try {
+            while (sendBuffer.hasRemaining()) {
+                channel.write(sendBuffer);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void listen() {
+        ByteBuffer in = ByteBuffer.allocate(Protocol.MAX_FRAME_SIZE);
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                int frame = 0;
+                int size;
+                while ((size = Protocol.frameSize(in, frame)) >= 0) {
+                    if (size < Protocol.HEADER_SIZE || size > in.capacity()) {
+                        throw new IOException("Bad frame length " + size);
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    if (frame + size > in.limit()) break;
+                    if (!Protocol.isComplete(in, frame, size)) {
+                        throw new IOException("Malformed frame of type " + Protocol.type(in, frame));
+                    }
+                    handleFrame(in, frame);
+                    frame += size;
                 }
-            }).start();
+                in.position(frame);
+                in.compact();
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (channel.isOpen()) e.printStackTrace();
         }
+    }
 
+    private void handleFrame(ByteBuffer in, int frame) {
+        switch (Protocol.type(in, frame)) {
+            case Protocol.WELCOME -> {
+                entityId = Protocol.entity(in, frame);
+                System.out.println("Joined as player " + entityId);
+            }
+            case Protocol.JOIN -> System.out.println("Player " + Protocol.entity(in, frame) + " joined at x="
+                    + Protocol.joinX(in, frame) + ", y=" + Protocol.joinY(in, frame));
+            case Protocol.LEAVE -> System.out.println("Player " + Protocol.entity(in, frame) + " left");
+            case Protocol.TILE_EDITS -> {
+                int[] edits = new int[Protocol.editCount(in, frame)];
+                for (int i = 0; i < edits.length; i++) {
+                    edits[i] = Protocol.editIndex(in, frame, i) << 16 | Protocol.editTileID(in, frame, i);
+                }
+                chunkUpdates.add(new ChunkUpdate(Protocol.chunkX(in, frame), Protocol.chunkY(in, frame),
+                        Protocol.chunkVersion(in, frame), edits, null));
+            }
+            case Protocol.CHUNK_DATA -> {
+                short[] tiles = new short[Protocol.chunkTileCount(in, frame)];
+                for (int i = 0; i < tiles.length; i++) {
+                    tiles[i] = Protocol.chunkTile(in, frame, i);
+                }
+                chunkUpdates.add(new ChunkUpdate(Protocol.chunkX(in, frame), Protocol.chunkY(in, frame),
+                        Protocol.chunkVersion(in, frame), null, tiles));
+            }
+            case Protocol.SNAPSHOT -> applySnapshot(in, frame);
+            default -> {
+                // INPUT, ACK, TILE_CHANGE and chunk subscriptions only travel from clients to the server
+            }
+        }
     }
 
-    public void sendPosition(String position) {
-        out.println(position);
+    // A snapshot may span several frames with the same tick, all against the same baseline
+    private void applySnapshot(ByteBuffer in, int frame) {
+        int tick = Protocol.snapshotTick(in, frame);
+        int baseTick = Protocol.snapshotBase(in, frame);
+        if (building == null || building.getTick() != tick) {
+            Snapshot base = null;
+            if (baseTick != Protocol.NO_BASELINE) {
+                base = snapshots.canDeltaFrom(baseTick, tick) ? snapshots.get(baseTick) : null;
+                if (base == null) return; // Baseline is gone; without an ack the server falls back to a full snapshot
+            }
+            building = snapshots.claim(tick);
+            if (base != null) {
+                building.copyFrom(base);
+                building.tick = tick;
+            }
+        }
+        building.applyFrame(in, frame);
+        sendAck(tick);
+        remotePlayers.addSnapshot(building, entityId);
+
+        int self = building.indexOf(entityId);
+        if (self >= 0) {
+            synchronized (this) {
+                serverSeq = building.getSeq(self);
+                serverX = building.getX(self);
+                serverY = building.getY(self);
+                serverStateFresh = true;
+            }
+        }
     }
 
     public static void main(String[] args) {
-        GameClient client = new GameClient("your_server_ip", 12345);
-        // Example of sending position data
-        client.sendPosition("Player1: x=10, y=20");
+        GameClient client = new GameClient("localhost", Value.ServerPort);
+        // Join and walk right for one tick
+        client.sendJoin(10, 20);
+        client.sendInput(1, PlayerMovement.RIGHT, "walkingRight");
     }
 
 }
@@ -0,0 +1,130 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.DoubleConsumer;
+
+// Fixed-timestep game loop on its own thread.
+// The simulation always advances in steps of 1 / ticksPerSecond, no matter how fast frames
+// are rendered. Each frame receives an interpolation factor (0..1) telling how far the
+// clock is between the last tick and the next one, so movement can be drawn smoothly.
+public class GameLoop implements Runnable {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long MAX_FRAME_NANOS = NANOS_PER_SECOND / 4; // Skip ahead after long stalls
+
+    private final Runnable tick;
+    private final DoubleConsumer render;
+    private final int ticksPerSecond;
+    private final int targetFps; // 0 renders as fast as possible
+    private final boolean benchmark;
+
+    // Work posted from other threads (e.g. key events) runs on the loop thread before the next tick
+    private final Queue<Runnable> posted = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running;
+    private Thread thread;
+
+    private volatile int framesPerSecond;
+    private volatile int ticksPerSecondAchieved;
+
+    public GameLoop(Runnable tick, DoubleConsumer render) {
+        this(tick, render, Value.TicksPerSecond, Value.TargetFps, Value.BenchmarkMode);
+    }
+
+    public GameLoop(Runnable tick, DoubleConsumer render, int ticksPerSecond, int targetFps, boolean benchmark) {
+        this.tick = tick;
+        this.render = render;
+        this.ticksPerSecond = ticksPerSecond;
+        this.targetFps = benchmark ? 0 : targetFps;
+        this.benchmark = benchmark;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, "game-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        thread = null;
+    }
+
+    public void post(Runnable task) {
+        posted.add(task);
+    }
+
+    public int getFramesPerSecond() { return framesPerSecond; }
+    public int getTicksPerSecond() { return ticksPerSecondAchieved; }
+
+    @Override
+    public void run() {
+        final long tickNanos = NANOS_PER_SECOND / ticksPerSecond;
+        final long frameNanos = targetFps > 0 ? NANOS_PER_SECOND / targetFps : 0;
+
+        long previous = System.nanoTime();
+        long accumulator = 0;
+        long reportTime = previous;
+        int frames = 0;
+        int ticks = 0;
+
+        while (running) {
+            long frameStart = System.nanoTime();
+            accumulator += Math.min(frameStart - previous, MAX_FRAME_NANOS);
+            previous = frameStart;
+
+            try {
+                while (accumulator >= tickNanos) {
+                    Runnable task;
+                    while ((task = posted.poll()) != null) {
+                        task.run();
+                    }
+                    tick.run();
+                    accumulator -= tickNanos;
+                    ticks++;
+                }
+
+                render.accept((double) accumulator / tickNanos);
+                frames++;
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // Keep the game running, like a failed paint on the EDT would
+            }
+
+            if (frameStart - reportTime >= NANOS_PER_SECOND) {
+                framesPerSecond = frames;
+                ticksPerSecondAchieved = ticks;
+                if (benchmark) {
+                    System.out.println("FPS: " + frames + ", TPS: " + ticks);
+                }
+                frames = 0;
+                ticks = 0;
+                reportTime = frameStart;
+            }
+
+            if (frameNanos > 0) {
+                waitUntil(frameStart + frameNanos);
+            }
+        }
+    }
+
+    // Sleeps most of the remaining frame time, then spins briefly for accurate pacing
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > 2_000_000) {
+                LockSupport.parkNanos(remaining - 1_000_000);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
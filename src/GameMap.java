@@ -1,14 +1,5 @@
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
 
 public class GameMap {
 
@@ -16,9 +7,11 @@ public class GameMap {
     private static final int WATER_ANIMATION_FRAMES = Value.waterAnimationPaths.length;
     private final int FRAME_DURATION_MS;
 
-    private final BufferedImage[][] animatedTiles;
-    private final BufferedImage[] staticTilesheets;
-    private final int[][] backgroundLayer;
+    private final Sprite[] animatedTiles; // One atlas sprite per water animation frame
+    private final Sprite[] staticTilesheets;
+    private final World world;
+    private final ChunkManager backgroundLayer;
+    private final ChunkImageCache chunkImages;
 
 
     private int camX, camY;
@@ -30,76 +23,36 @@ public class GameMap {
     private int currentWaterFrame = 0;
     private long lastFrameTime = 0;
 
-    public GameMap(String[] tilesheetPaths, String backgroundLayerPath, int screenWidth, int screenHeight) {
-        this.backgroundLayer = loadLayer(backgroundLayerPath);
-        this.staticTilesheets = loadTileSheets(tilesheetPaths);
-        this.animatedTiles = loadAnimatedTiles(Value.waterAnimationPaths);
+    public GameMap(String[] tilesheetPaths, World world, int screenWidth, int screenHeight, SpriteAtlas atlas,
+                   AssetLoader assets) {
+        this.world = world;
+        this.backgroundLayer = world.getBackground();
+        this.staticTilesheets = atlas.addAll(loadImages(assets, tilesheetPaths), false);
+        this.animatedTiles = atlas.addAll(loadImages(assets, Value.waterAnimationPaths), false);
+        this.chunkImages = new ChunkImageCache(backgroundLayer, staticTilesheets, TILE_SIZE);
 
         this.screenWidth = screenWidth;
         this.screenHeight = screenHeight;
-        this.mapWidth = backgroundLayer[0].length * TILE_SIZE;
-        this.mapHeight = backgroundLayer.length * TILE_SIZE;
+        this.mapWidth = backgroundLayer.getWidth() * TILE_SIZE;
+        this.mapHeight = backgroundLayer.getHeight() * TILE_SIZE;
 
         this.FRAME_DURATION_MS = Value.waterFrameDurationMs; // Configurable frame duration
         lastFrameTime = System.currentTimeMillis();
     }
 
-    private BufferedImage[] loadTileSheets(String[] paths) {
-        BufferedImage[] sheets = new BufferedImage[paths.length];
-        for (int i = 0; i < paths.length; i++) {
-            sheets[i] = loadImage(paths[i]);
-        }
-        return sheets;
-    }
-
-    private BufferedImage[][] loadAnimatedTiles(String[] paths) {
-        BufferedImage[][] tiles = new BufferedImage[WATER_ANIMATION_FRAMES][paths.length];
-        for (int frame = 0; frame < WATER_ANIMATION_FRAMES; frame++) {
-            for (int tileType = 0; tileType < paths.length; tileType++) {
-                tiles[frame][tileType] = loadImage(paths[frame]);
-            }
-        }
-        return tiles;
-    }
-
-    private BufferedImage loadImage(String path) {
-        URL imageUrl = getClass().getResource(path);
-        try {
-            if (imageUrl == null) {
-                System.err.println("Tile sheet not found: " + path);
-                return createDefaultTileSheet();
-            }
-            return ImageIO.read(imageUrl);
-        } catch (IOException e) {
-            System.err.println("IOException while reading image: " + path);
-            e.printStackTrace();
-            return createDefaultTileSheet();
+    // Decoded by the AssetLoader; any that failed to load is drawn blank
+    private BufferedImage[] loadImages(AssetLoader assets, String[] paths) {
+        BufferedImage[] images = assets.get(paths);
+        for (int i = 0; i < images.length; i++) {
+            if (images[i] == null) images[i] = createDefaultTileSheet();
         }
+        return images;
     }
 
     private BufferedImage createDefaultTileSheet() {
         return new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
     }
 
-    private int[][] loadLayer(String layerPath) {
-        List<int[]> rows = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
-                Objects.requireNonNull(getClass().getResourceAsStream(layerPath))))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                int[] row = Arrays.stream(line.trim().split(","))
-                        .map(String::trim)
-                        .mapToInt(Integer::parseInt)
-                        .toArray();
-                rows.add(row);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return new int[0][0];
-        }
-        return rows.toArray(new int[0][0]);
-    }
-
     public void updateCamera(int playerX, int playerY) {
         // Smooth camera movement with easing effect
         camX += (playerX - screenWidth / 2 - camX); // Explicitly cast to int
@@ -117,40 +70,40 @@ public class GameMap {
             lastFrameTime = currentTime;
         }
 
-        int startTileX = Math.max(0, camX / TILE_SIZE);
-        int startTileY = Math.max(0, camY / TILE_SIZE);
-        int endTileX = Math.min((camX + screenWidth) / TILE_SIZE, backgroundLayer[0].length - 1);
-        int endTileY = Math.min((camY + screenHeight) / TILE_SIZE, backgroundLayer.length - 1);
-
-        for (int row = startTileY; row <= endTileY; row++) {
-            for (int col = startTileX; col <= endTileX; col++) {
-                int tileType = backgroundLayer[row][col];
-                int tileX = col * TILE_SIZE - camX;
-                int tileY = row * TILE_SIZE - camY;
-
-                // Handle animated water tiles
-                if (Arrays.stream(Value.anitile).anyMatch(num -> num == tileType) && animatedTiles[currentWaterFrame][0] != null) {
-                    drawAnimatedTile(g, tileX, tileY);
-                } else if (tileType >= 0 && tileType < staticTilesheets.length) {
-                    g.drawImage(staticTilesheets[tileType], tileX, tileY, TILE_SIZE, TILE_SIZE, null);
-                }
-            }
-        }
-    }
+        // Stream in the chunks around the camera before they scroll into view
+        backgroundLayer.requestAround((camX + screenWidth / 2) / TILE_SIZE, (camY + screenHeight / 2) / TILE_SIZE,
+                Value.ChunkLoadRadius);
 
-    private void drawAnimatedTile(Graphics g, int tileX, int tileY) {
-        g.drawImage(animatedTiles[currentWaterFrame][0], tileX, tileY, TILE_SIZE, TILE_SIZE, null);
+        // Static tiles come from pre-rendered images, animated water is drawn on top
+        chunkImages.draw(g, camX, camY, screenWidth, screenHeight, animatedTiles[currentWaterFrame]);
     }
 
-
     public void setTile(int x, int y, int TileID) {
-        if (x >= 0 && x < backgroundLayer[0].length && y >= 0 && y < backgroundLayer.length) {
-            backgroundLayer[y][x] = TileID;
+        world.setBackgroundTile(x, y, TileID);
+        chunkImages.invalidate(x, y);
+    }
+
+    // Replaces a whole chunk of the background, laid out as ChunkManager.copyChunk gives it
+    public void setChunk(int chunkX, int chunkY, short[] tiles) {
+        backgroundLayer.replaceChunk(chunkX, chunkY, tiles);
+        int chunkSize = backgroundLayer.getChunkSize();
+        int imageTiles = Value.RenderChunkSize;
+        for (int y = chunkY * chunkSize / imageTiles; y <= (chunkY * chunkSize + chunkSize - 1) / imageTiles; y++) {
+            for (int x = chunkX * chunkSize / imageTiles; x <= (chunkX * chunkSize + chunkSize - 1) / imageTiles; x++) {
+                chunkImages.invalidate(x * imageTiles, y * imageTiles);
+            }
         }
     }
 
+    public int getCamX() { return camX; }
+    public int getCamY() { return camY; }
+
+    public ChunkManager getBackgroundLayer() {
+        return backgroundLayer;
+    }
+
     public int bgmapsize(){
-        return backgroundLayer.length;
+        return backgroundLayer.getHeight();
     }
 
 }
@@ -1,43 +1,80 @@
-import javax.swing.*;
 import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.image.BufferStrategy;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
-public class GamePanel extends JPanel implements ActionListener, KeyListener {
+// Game view rendered actively from the GameLoop thread through a BufferStrategy
+public class GamePanel extends Canvas implements KeyListener {
     private final Player player;
+    private final World world;
     private final GameMap gameMap;
     private final TileSetting tileSetting;
+    private final GameLoop gameLoop;
+    private final GameClient client; // Null when playing single player
+    private final SpatialGrid entities = new SpatialGrid(); // Everything drawn on the map, by entity ID
+    private final int[] visibleEntities = new int[256];
+    private static final int MAX_REMOTE_PLAYERS = 1024;
+    // Remote players sampled from the client's interpolation buffer each frame, game loop thread only
+    private final int[] remoteIds = new int[MAX_REMOTE_PLAYERS], remoteX = new int[MAX_REMOTE_PLAYERS],
+            remoteY = new int[MAX_REMOTE_PLAYERS], remoteAnimation = new int[MAX_REMOTE_PLAYERS];
+    private final int[] previousRemoteIds = new int[MAX_REMOTE_PLAYERS];
+    private int remoteCount, previousRemoteCount;
+    private final int[] remoteIndex = new int[0x10000]; // Entity ID to index in the remote arrays
+    private final int[] remoteFrame = new int[0x10000]; // Last frame each entity ID was sampled in
+    private int frame;
+    private int ticks; // Game loop ticks so far, drives remote player animations
+    private final Set<Long> subscribedChunks = new HashSet<>(); // By Chunk.key, game loop thread only
+    private int centerChunkX = -1, centerChunkY = -1; // Chunk the player was in when subscriptions last changed
     HitboxData hitboxData = new HitboxData();
     private static final int TILE_SIZE = Value.TileSize;
     private static final int NUM_TILES_X = Value.NumTilex;
     private static final int NUM_TILES_Y = Value.NumTiley;
+    private static final int PLAYER_ID = 0;
 
     public GamePanel() {
-        // Paths to tilesheets and layer files
+        this(null, null);
+    }
+
+    // assets are the images loaded in the menu; if not given they are loaded here before anything is drawn
+    public GamePanel(GameClient client, AssetLoader assets) {
+        this.client = client;
+        if (assets == null || !assets.isLoaded()) {
+            assets = new AssetLoader();
+            assets.load(null);
+        }
+        // Paths to tilesheets
         String[] tilesheetPaths = Value.tilesheetPaths;
-        String backgroundLayerPath = Value.backgroundLayerPath;
 
-        // Initialize TileSetting and GameMap
-        gameMap = new GameMap(tilesheetPaths, backgroundLayerPath, TILE_SIZE * NUM_TILES_X, TILE_SIZE * NUM_TILES_Y);
-        tileSetting = new TileSetting(TILE_SIZE * NUM_TILES_X, TILE_SIZE * NUM_TILES_Y);
+        // Map layers and collision, the same World the server simulates. Offline, edits are saved.
+        world = client == null ? World.loadPersistent() : World.load();
 
+        // Tiles, fences and player frames are pre-scaled into a shared sprite atlas
+        SpriteAtlas atlas = new SpriteAtlas(TILE_SIZE);
 
-        // Initialize player
-        player = new Player(TILE_SIZE * 2, TILE_SIZE * 2, tileSetting, hitboxData);
-        player.setGameMap(); // Ensure gameMap is set in Player
+        // Initialize TileSetting and GameMap to draw the world
+        gameMap = new GameMap(tilesheetPaths, world, TILE_SIZE * NUM_TILES_X, TILE_SIZE * NUM_TILES_Y, atlas, assets);
+        tileSetting = new TileSetting(world, TILE_SIZE * NUM_TILES_X, TILE_SIZE * NUM_TILES_Y, atlas, assets);
 
-        // Set up a timer for the game loop
-        int fps = 60;
-        Timer timer = new Timer(1000 / fps, this);
-        timer.start();
 
-        if (gameMap.bgmapsize() != tileSetting.collisionmap(0)) {
-            RepairSystem.synchronizeLayers(Value.backgroundLayerPath, Value.collisionLayerPath);
+        // Initialize player
+        // Same spawn the server picks, so prediction starts where the server puts us
+        long spawn = world.findSpawn(Value.SpawnTileX, Value.SpawnTileY);
+        player = new Player(CollisionResolver.unpackX(spawn), CollisionResolver.unpackY(spawn), world, hitboxData, atlas, assets);
+        player.setGameMap(); // Ensure gameMap is set in Player
+        if (client != null) {
+            player.setClient(client);
+            client.sendJoin(player.getX(), player.getY());
         }
+        entities.insert(PLAYER_ID, player.getX(), player.getY(), TILE_SIZE, TILE_SIZE);
+
+        // Fixed-timestep game loop, started once the canvas is on screen
+        gameLoop = new GameLoop(this::update, this::render);
 
         // Add key listener
+        setIgnoreRepaint(true); // All painting happens in render()
         setFocusable(true);
         requestFocusInWindow(); // Request focus to ensure key events are captured
         addKeyListener(this);
@@ -50,47 +87,172 @@ public class GamePanel extends JPanel implements ActionListener, KeyListener {
     }
 
     @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
+    public void addNotify() {
+        super.addNotify();
+        createBufferStrategy(2);
+        gameLoop.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        gameLoop.stop();
+        if (client != null) client.close();
+        world.close();
+        super.removeNotify();
+    }
+
+    // One fixed simulation step, called on the game loop thread
+    private void update() {
+        player.update(); // Update player state and animation
+        ticks++;
+        entities.move(PLAYER_ID, player.getX(), player.getY());
+        if (client != null) syncChunks();
+    }
+
+    // Applies the tile edits the server sent and keeps us subscribed to the chunks around the player.
+    // Chunks are dropped one chunk further out than they are picked up, so walking back and forth
+    // over a chunk border does not subscribe and unsubscribe every time.
+    private void syncChunks() {
+        int chunkSize = world.getBackground().getChunkSize();
+        GameClient.ChunkUpdate update;
+        while ((update = client.pollChunkUpdate()) != null) {
+            int chunkX = update.chunkX, chunkY = update.chunkY;
+            if (!world.hasChunk(chunkX, chunkY)) continue;
+            int known = world.getChunkVersion(chunkX, chunkY);
+            if (update.tiles != null) {
+                if (update.tiles.length != chunkSize * chunkSize) continue; // A server with another map format
+                gameMap.setChunk(chunkX, chunkY, update.tiles);
+                world.setChunkVersion(chunkX, chunkY, update.version);
+            } else if (update.version > known) {
+                client.subscribeChunk(chunkX, chunkY, known); // Edits before these are missing, ask again
+            } else {
+                // Skip edits we already have, from a subscription reply in the same tick
+                for (int i = known - update.version; i < update.edits.length; i++) {
+                    int index = update.edits[i] >>> 16;
+                    gameMap.setTile(chunkX * chunkSize + index % chunkSize, chunkY * chunkSize + index / chunkSize,
+                            update.edits[i] & 0xFFFF);
+                }
+                world.setChunkVersion(chunkX, chunkY, Math.max(known, update.version + update.edits.length));
+            }
+        }
+
+        int centerX = player.getX() / TILE_SIZE / chunkSize;
+        int centerY = player.getY() / TILE_SIZE / chunkSize;
+        if (centerX == centerChunkX && centerY == centerChunkY) return;
+        centerChunkX = centerX;
+        centerChunkY = centerY;
+        int radius = Value.ChunkLoadRadius;
+        for (Iterator<Long> it = subscribedChunks.iterator(); it.hasNext(); ) {
+            long key = it.next();
+            int chunkX = (int) (key >> 32), chunkY = (int) key;
+            if (Math.abs(chunkX - centerX) > radius + 1 || Math.abs(chunkY - centerY) > radius + 1) {
+                client.unsubscribeChunk(chunkX, chunkY);
+                it.remove();
+            }
+        }
+        for (int chunkY = centerY - radius; chunkY <= centerY + radius; chunkY++) {
+            for (int chunkX = centerX - radius; chunkX <= centerX + radius; chunkX++) {
+                if (world.hasChunk(chunkX, chunkY) && subscribedChunks.add(Chunk.key(chunkX, chunkY))) {
+                    client.subscribeChunk(chunkX, chunkY, world.getChunkVersion(chunkX, chunkY));
+                }
+            }
+        }
+    }
+
+    // Draws a frame; alpha is how far the loop is between the last tick and the next
+    private void render(double alpha) {
+        BufferStrategy strategy = getBufferStrategy();
+        if (strategy == null) return;
+
+        do {
+            do {
+                Graphics g = strategy.getDrawGraphics();
+                try {
+                    draw(g, alpha);
+                } finally {
+                    g.dispose();
+                }
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+    }
+
+    private void draw(Graphics g, double alpha) {
+        int playerX = player.getRenderX(alpha);
+        int playerY = player.getRenderY(alpha);
+
+        // Clear the back buffer, a Canvas has no paintComponent to do it for us
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, getWidth(), getHeight());
 
         // Draw background map
-        tileSetting.drawBackMap(g, player.getX(), player.getY());
+        tileSetting.drawBackMap(g, playerX, playerY);
 
         // Draw game map
-        gameMap.drawMap(g, player.getX(), player.getY());
+        gameMap.drawMap(g, playerX, playerY);
 
-        // Draw the player independently for smooth animation
-        drawPlayer(g);
+        if (client != null) updateRemotePlayers();
+
+        // Draw only the entities inside the camera, padded by a tile for interpolation
+        int camX = gameMap.getCamX();
+        int camY = gameMap.getCamY();
+        int visible = entities.queryAabb(camX - TILE_SIZE, camY - TILE_SIZE,
+                camX + getWidth() + TILE_SIZE, camY + getHeight() + TILE_SIZE, visibleEntities);
+        for (int i = 0; i < visible; i++) {
+            int id = visibleEntities[i];
+            if (id == PLAYER_ID) {
+                drawPlayer(g, alpha);
+            } else {
+                int r = remoteIndex[id];
+                player.paintRemote(g, remoteAnimation[r], ticks, remoteX[r] - camX, remoteY[r] - camY);
+            }
+        }
 
         // Draw fences on top
-        tileSetting.drawFences(g, player.getX(), player.getY());
+        tileSetting.drawFences(g, playerX, playerY);
 
-//        hitboxData.drawPlayerHitbox(g, player.getX(), player.getY());
-//        hitboxData.drawTileHitbox(g, player.getX(), player.getY());
+//        hitboxData.drawPlayerHitbox(g, gameMap.getCamX(), gameMap.getCamY());
     }
 
-    private void drawPlayer(Graphics g) {  player.paint(g); }
-
-    @Override
-    public void actionPerformed(ActionEvent e) {
-        player.update(); // Update player state and animation
-        repaint(); // Trigger repaint to update visuals
+    // Moves the other players in the entity grid to where the interpolation buffer puts them now.
+    // The server numbers players from 1, so their IDs never clash with our own PLAYER_ID.
+    private void updateRemotePlayers() {
+        frame++;
+        remoteCount = client.getRemotePlayers().sample(remoteIds, remoteX, remoteY, remoteAnimation);
+        for (int i = 0; i < remoteCount; i++) {
+            int id = remoteIds[i];
+            remoteIndex[id] = i;
+            remoteFrame[id] = frame;
+            entities.insert(id, remoteX[i], remoteY[i], TILE_SIZE, TILE_SIZE);
+        }
+        // Players no longer sampled left the buffer
+        for (int i = 0; i < previousRemoteCount; i++) {
+            int id = previousRemoteIds[i];
+            if (remoteFrame[id] != frame) entities.remove(id);
+        }
+        System.arraycopy(remoteIds, 0, previousRemoteIds, 0, remoteCount);
+        previousRemoteCount = remoteCount;
     }
 
+    private void drawPlayer(Graphics g, double alpha) {  player.paint(g, alpha, gameMap.getCamX(), gameMap.getCamY()); }
+
     @Override
     public void keyPressed(KeyEvent e) {
         int keyCode = e.getKeyCode();
         if (keyCode == KeyEvent.VK_ENTER) {
-            // Get the player's current tile position
-            int playerTileX = player.getX() / TILE_SIZE;
-            int playerTileY = player.getY() / TILE_SIZE;
-
-            int TileID = Value.waterID;
-            // Set the current tile to water in the background layer
-            gameMap.setTile(playerTileX, playerTileY, TileID);
+            // Change the map on the game loop thread, which owns it
+            gameLoop.post(() -> {
+                // Get the player's current tile position
+                int playerTileX = player.getX() / TILE_SIZE;
+                int playerTileY = player.getY() / TILE_SIZE;
 
-            // Repaint to reflect changes
-            repaint();
+                int TileID = Value.waterID;
+                // Set the current tile to water in the background layer; online the server may still
+                // refuse it, and then sends back the chunk as it is
+                gameMap.setTile(playerTileX, playerTileY, TileID);
+                if (client != null) client.sendTileChange(playerTileX, playerTileY, TileID);
+            });
         } else {
             player.handleKeyPress(keyCode); // Handle other key presses for player movement
         }
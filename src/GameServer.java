@@ -1,69 +1,896 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
 
+// Non-blocking game server. An acceptor thread hands new connections round-robin to a
+// fixed set of I/O workers, each running one Selector over many connections.
+// Every connection has its own read buffer and a queue of outgoing buffers. A client that
+// does not read what we send has its own input paused once its queue passes
+// Value.WriteQueueHighWatermark and is dropped at Value.WriteQueueLimit, so one slow
+// client never stalls the others. Messages use the binary frames of Protocol.
+// With Value.ServerVirtualThreads each connection instead gets a reader and a writer virtual
+// thread doing blocking I/O on the same per-connection buffers and bounded queue: the reader
+// parks at the high watermark rather than dropping read interest, and the tick thread only
+// ever queues, so a slow socket blocks nothing but its own writer.
+// Clients send numbered INPUT frames, not positions. The I/O thread only rate-limits and queues
+// them; the tick thread steps every player's queued inputs through a World loaded headlessly
+// from the same layer files the client predicts with, so the server's position is authoritative
+// and snapshots tell each client which input it reflects.
+// Player states are not relayed as they arrive: a tick thread running at
+// Value.ServerTickRate takes a Snapshot of every player and indexes them in a SpatialGrid.
+// Each client is sent only the players within Value.InterestRadius tiles of its own, as a
+// delta against the view it last acknowledged, or in full if that one is no longer in its
+// history. Joins and leaves also go only to the clients near them, so traffic and tick time
+// follow local player density rather than the total player count.
+// A TILE_CHANGE is a request. The tick thread applies it if the editor stands near the tile,
+// records it in a TileEditLog, and at the end of the tick sends each edited chunk's new edits
+// as one TILE_EDITS frame to the clients subscribed to that chunk. Clients subscribe to the
+// chunks around them with the version they already have and are sent only what they missed.
+// An edit refused for reach, tile ID or the client's edit budget gets the sender the whole chunk.
+// Clients may also connect over UDP on the same port number (UdpTransport). They get a
+// ClientHandler without a socket: snapshots, inputs and acks go unreliable, so a lost datagram
+// never delays newer state, and everything else goes reliable and ordered.
 public class GameServer {
 
-    private static final int PORT = 12345;
-    private static Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet();
+    private final int port;
+    private final boolean virtualThreads;
+    private final IoWorker[] workers; // Empty with virtual threads
+    private final Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet();
+    private final Queue<Integer> freeIds = new ConcurrentLinkedQueue<>(); // Entity IDs of connections closed a while ago
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final AtomicReferenceArray<ClientHandler> players = new AtomicReferenceArray<>(0x10000); // By entity ID
+    private ServerSocketChannel serverChannel;
+    private World gameWorld; // Layers and collision, tick thread only once started
+    private volatile long spawn; // Top-left corner every player joins at, CollisionResolver.pack
+    private volatile boolean joinAnywhere; // Test hook, see setJoinAnywhere
+    private TileEditLog tileEdits;
+    private int chunkSize; // Of the background layer, set before any thread starts
+    private ScheduledExecutorService tickExecutor;
+    private UdpTransport udp;
+    private volatile boolean running;
+
+    private static final int INPUT_QUEUE_SIZE = 64; // Per client, a power of two; about a second of input
+    private static final int MAX_CHUNK_SUBSCRIPTIONS = 64; // Per client
+    private static final byte RESYNC = -1; // ChunkRequest for a chunk with edits refused over the budget
+
+    private final Queue<Event> pendingEvents = new ConcurrentLinkedQueue<>(); // Sent to nearby clients on the next tick
+    private final Queue<ChunkRequest> chunkRequests = new ConcurrentLinkedQueue<>(); // Applied on the next tick
+
+    // Tick thread only
+    private int tick;
+    private final Snapshot world = new Snapshot(); // Every joined player this tick
+    private final SpatialGrid playerGrid = new SpatialGrid(); // Players by position, one cell per tile
+    private int[] nearby = new int[256];
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(64 * 1024);
+    private final int[] snapshotState = new int[4]; // seq, x, y, animation of one player
+    private final Map<Long, List<ClientHandler>> chunkSubscribers = new HashMap<>(); // By Chunk.key
+    private final Map<Long, Integer> editedChunks = new LinkedHashMap<>(); // Chunk.key to its version before this tick
+    // Entity IDs of closed connections as tick << 16 | id, oldest first. An ID is only freed once
+    // every snapshot a client may still delta from is newer than its leave, so no client can mistake
+    // a new player reusing it for the old one
+    private final ArrayDeque<Long> leftIds = new ArrayDeque<>();
+
+    // A frame for the clients near a point in world pixels, except one
+    private static final class Event {
+        final ByteBuffer frame;
+        final int x, y;
+        final ClientHandler exclude;
+
+        Event(ByteBuffer frame, int x, int y, ClientHandler exclude) {
+            this.frame = frame.asReadOnlyBuffer();
+            this.x = x;
+            this.y = y;
+            this.exclude = exclude;
+        }
+    }
+
+    // A TILE_CHANGE, CHUNK_SUBSCRIBE or CHUNK_UNSUBSCRIBE from one client, RESYNC to send it a chunk
+    // back, or LEAVE to drop all of its subscriptions
+    private static final class ChunkRequest {
+        final ClientHandler sender;
+        final byte type;
+        final int x, y; // Tile or chunk coordinates
+        final int value; // Tile ID or the version the client has
+
+        ChunkRequest(ClientHandler sender, byte type, int x, int y, int value) {
+            this.sender = sender;
+            this.type = type;
+            this.x = x;
+            this.y = y;
+            this.value = value;
+        }
+    }
+
+    public GameServer(int port, int ioThreads) {
+        this(port, ioThreads, Value.ServerVirtualThreads);
+    }
+
+    public GameServer(int port, int ioThreads, boolean virtualThreads) {
+        this.port = port;
+        this.virtualThreads = virtualThreads;
+        this.workers = new IoWorker[virtualThreads ? 0 : Math.max(1, ioThreads)];
+    }
 
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Game server started on port " + PORT);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Value.ServerPort;
+        int ioThreads = args.length > 1 ? Integer.parseInt(args[1]) : Value.ServerIoThreads;
+        boolean virtualThreads = args.length > 2 ? args[2].equals("virtual") : Value.ServerVirtualThreads;
+        try {
+            GameServer server = new GameServer(port, ioThreads, virtualThreads);
+            server.start();
+            System.out.println("Game server started on port " + server.getPort()
+                    + (virtualThreads ? " with virtual threads" : " with " + ioThreads + " I/O threads"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(clientSocket);
-                clientHandlers.add(handler);
-                new Thread(handler).start();
+    public void start() throws IOException {
+        gameWorld = World.loadPersistent();
+        tileEdits = new TileEditLog(gameWorld);
+        chunkSize = gameWorld.getBackground().getChunkSize();
+        spawn = gameWorld.findSpawn(Value.SpawnTileX, Value.SpawnTileY); // Collision is never edited, so this holds
+        if (encodeBuffer.capacity() < tileEdits.maxFrameSize()) encodeBuffer = ByteBuffer.allocate(tileEdits.maxFrameSize());
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new IoWorker();
+            workers[i].thread = new Thread(workers[i], "server-io-" + i);
+            workers[i].thread.start();
+        }
+        new Thread(this::acceptLoop, "server-acceptor").start();
+
+        long period = 1_000_000_000L / Value.ServerTickRate;
+        tickExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "server-tick"));
+        tickExecutor.scheduleAtFixedRate(this::runTick, period, period, TimeUnit.NANOSECONDS);
+
+        try {
+            udp = UdpTransport.server(getPort(), new UdpPeers());
+        } catch (IOException e) {
+            System.err.println("UDP port " + getPort() + " unavailable, serving TCP only");
+            e.printStackTrace();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (tickExecutor != null) {
+            tickExecutor.shutdown();
+            try {
+                tickExecutor.awaitTermination(1, TimeUnit.SECONDS); // The last tick's edits still get saved
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
+        if (gameWorld != null) gameWorld.close();
+        if (udp != null) udp.close();
+        try {
+            serverChannel.close(); // Unblocks accept()
         } catch (IOException e) {
             e.printStackTrace();
         }
+        for (IoWorker worker : workers) {
+            if (worker != null) worker.selector.wakeup();
+        }
+        if (virtualThreads) {
+            for (ClientHandler handler : clientHandlers) handler.close(); // Also ends their blocked reads
+        }
+    }
+
+    // Actual port, useful when started on port 0
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
     }
 
-    static void broadcast(String message, ClientHandler excludeHandler) {
-        for (ClientHandler handler : clientHandlers) {
-            if (handler != excludeHandler) {
-                handler.sendMessage(message);
+    // Capacity tests only: players join wherever their JOIN asks, even off the map, instead of at
+    // the spawn, so bots can be spread out to a realistic density
+    public void setJoinAnywhere(boolean joinAnywhere) {
+        this.joinAnywhere = joinAnywhere;
+    }
+
+    public int getClientCount() {
+        return clientHandlers.size();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (virtualThreads) {
+                    serveOnVirtualThreads(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                workers[next].register(channel);
+                next = (next + 1) % workers.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) e.printStackTrace();
             }
         }
     }
 
-    static class ClientHandler implements Runnable {
-        private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
+    private void serveOnVirtualThreads(SocketChannel channel) {
+        ClientHandler handler = new ClientHandler(channel, null, allocateId());
+        if (handler.id < 0) {
+            System.err.println("No free entity IDs, refusing connection");
+            handler.close();
+            return;
+        }
+        players.set(handler.id, handler);
+        clientHandlers.add(handler);
+        handler.writer = Thread.ofVirtual().name("client-writer-" + handler.id).start(handler::writeLoop);
+        handler.reader = Thread.ofVirtual().name("client-reader-" + handler.id).start(handler::readLoop);
+    }
+
+    // Called on the sender's I/O thread, or the UDP thread, for every complete frame it sends.
+    // The frame lives in a receive buffer and is only valid during this call.
+    void onFrame(ClientHandler sender, ByteBuffer in, int frame) {
+        switch (Protocol.type(in, frame)) {
+            case Protocol.JOIN -> join(sender, Protocol.joinX(in, frame), Protocol.joinY(in, frame));
+            case Protocol.INPUT -> sender.queueInput(Protocol.inputSeq(in, frame), Protocol.inputButtons(in, frame),
+                    Protocol.inputAnimation(in, frame)); // Simulated and sent out on the next tick
+            case Protocol.TILE_CHANGE -> {
+                int tileX = Protocol.tileX(in, frame), tileY = Protocol.tileY(in, frame);
+                if (sender.spendTileEdit()) {
+                    chunkRequests.add(new ChunkRequest(sender, Protocol.TILE_CHANGE, tileX, tileY, Protocol.tileID(in, frame)));
+                } else if (tileX >= 0 && tileY >= 0 && sender.resyncChunks.size() < MAX_CHUNK_SUBSCRIPTIONS
+                        && sender.resyncChunks.add(Chunk.key(tileX / chunkSize, tileY / chunkSize))) {
+                    // The client already drew the edit. However many it floods, each chunk goes back once per tick
+                    chunkRequests.add(new ChunkRequest(sender, RESYNC, tileX / chunkSize, tileY / chunkSize, 0));
+                }
+            }
+            case Protocol.CHUNK_SUBSCRIBE -> chunkRequests.add(new ChunkRequest(sender, Protocol.CHUNK_SUBSCRIBE,
+                    Protocol.chunkX(in, frame), Protocol.chunkY(in, frame), Protocol.chunkVersion(in, frame)));
+            case Protocol.CHUNK_UNSUBSCRIBE -> chunkRequests.add(new ChunkRequest(sender, Protocol.CHUNK_UNSUBSCRIBE,
+                    Protocol.chunkX(in, frame), Protocol.chunkY(in, frame), 0));
+            case Protocol.ACK -> sender.acknowledge(Protocol.ackTick(in, frame));
+            case Protocol.PING -> {
+                ByteBuffer pong = ByteBuffer.allocate(Protocol.PING_SIZE);
+                Protocol.writePong(pong, Protocol.pingTime(in, frame));
+                sender.send(pong.flip());
+            }
+            default -> {
+                // WELCOME, LEAVE, PONG, TILE_EDITS and CHUNK_DATA only travel from the server to clients
+            }
+        }
+    }
 
-        ClientHandler(Socket socket) {
-            this.socket = socket;
+    // An exception would cancel the scheduled task, so log it and keep ticking
+    private void runTick() {
+        try {
+            tick();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
         }
+    }
+
+    // One server tick: move every player by its queued inputs, snapshot and index them, forward
+    // events, apply tile edits and subscriptions, then send each client the part it can see
+    private void tick() {
+        tick++;
+        world.reset(tick);
+        while (!leftIds.isEmpty() && tick - (int) (leftIds.peek() >> 16) > Value.SnapshotHistory) {
+            freeIds.add((int) (leftIds.poll() & 0xFFFF));
+        }
+        int idLimit = Math.min(nextId.get(), players.length());
+        for (int id = 1; id < idLimit; id++) { // IDs ascending, as the snapshot needs
+            ClientHandler player = players.get(id);
+            if (player != null && player.joined) {
+                player.simulate();
+                player.readState(snapshotState);
+                world.add(id, snapshotState[0], snapshotState[1], snapshotState[2], snapshotState[3]);
+                playerGrid.insert(id, snapshotState[1], snapshotState[2], Value.TileSize, Value.TileSize);
+            } else if (playerGrid.contains(id)) {
+                playerGrid.remove(id);
+            }
+        }
+
+        Event event;
+        while ((event = pendingEvents.poll()) != null) {
+            int count = queryNearby(event.x, event.y);
+            for (int i = 0; i < count; i++) {
+                ClientHandler handler = players.get(nearby[i]);
+                if (handler != null && handler != event.exclude) handler.send(event.frame.duplicate());
+            }
+        }
+
+        ChunkRequest request;
+        while ((request = chunkRequests.poll()) != null) {
+            switch (request.type) {
+                case Protocol.TILE_CHANGE -> editTile(request.sender, request.x, request.y, request.value);
+                case Protocol.CHUNK_SUBSCRIBE -> subscribe(request.sender, request.x, request.y, request.value);
+                case Protocol.CHUNK_UNSUBSCRIBE -> unsubscribe(request.sender, Chunk.key(request.x, request.y));
+                case RESYNC -> resync(request.sender, request.x, request.y);
+                default -> {
+                    for (long key : request.sender.chunks) removeSubscriber(request.sender, key);
+                    request.sender.chunks.clear();
+                    if (request.sender.id > 0) leftIds.add((long) tick << 16 | request.sender.id);
+                }
+            }
+        }
+        for (Map.Entry<Long, Integer> edited : editedChunks.entrySet()) {
+            List<ClientHandler> subscribers = chunkSubscribers.get(edited.getKey());
+            if (subscribers == null) continue;
+            long key = edited.getKey();
+            ByteBuffer update = chunkUpdate((int) (key >> 32), (int) key, edited.getValue());
+            for (ClientHandler subscriber : subscribers) {
+                subscriber.send(update.duplicate());
+            }
+        }
+        editedChunks.clear();
+
+        for (int i = 0; i < world.size(); i++) {
+            ClientHandler handler = players.get(world.getEntity(i));
+            if (handler != null) sendView(handler, world.getX(i), world.getY(i));
+        }
+    }
+
+    // Sends one client the delta between its last acknowledged view and the players near it now
+    private void sendView(ClientHandler handler, int x, int y) {
+        if (handler.views == null) handler.views = new SnapshotRing(Value.SnapshotHistory);
+        int count = queryNearby(x, y);
+        Arrays.sort(nearby, 0, count);
+        Snapshot view = handler.views.claim(tick);
+        for (int i = 0; i < count; i++) {
+            int index = world.indexOf(nearby[i]);
+            if (index >= 0) {
+                view.add(nearby[i], world.getSeq(index), world.getX(index), world.getY(index), world.getAnimation(index));
+            }
+        }
+
+        int acked = handler.ackedTick;
+        Snapshot base = handler.views.canDeltaFrom(acked, tick) ? handler.views.get(acked) : null;
+        // Over UDP every frame must fit one datagram
+        int maxFrameSize = handler.udpConnection != null ? UdpTransport.maxUnreliableFrameSize() : Protocol.MAX_FRAME_SIZE;
+        handler.send(encode(view, base, maxFrameSize));
+    }
+
+    // Applies a client's tile edit if the tile ID is valid and its player stands within
+    // Value.TileEditReach tiles of the tile. A refused edit gets the sender the whole chunk, undoing
+    // the change it already made locally.
+    private void editTile(ClientHandler sender, int tileX, int tileY, int tileID) {
+        if (!sender.joined || !tileEdits.isOnMap(tileX, tileY)) return;
+        int chunkSize = gameWorld.getBackground().getChunkSize();
+        int chunkX = tileX / chunkSize, chunkY = tileY / chunkSize;
+        sender.readState(snapshotState);
+        int reach = Value.TileEditReach * Value.TileSize;
+        if (!TileEditLog.isValidTile(tileID)
+                || Math.abs(tileX * Value.TileSize - snapshotState[1]) > reach
+                || Math.abs(tileY * Value.TileSize - snapshotState[2]) > reach) {
+            sender.send(chunkUpdate(chunkX, chunkY, -1));
+            return;
+        }
+        editedChunks.putIfAbsent(Chunk.key(chunkX, chunkY), gameWorld.getChunkVersion(chunkX, chunkY));
+        tileEdits.apply(tileX, tileY, tileID);
+    }
+
+    // Edits of the chunk from now on go to the client, after whatever it is missing from version
+    private void subscribe(ClientHandler client, int chunkX, int chunkY, int version) {
+        if (!gameWorld.hasChunk(chunkX, chunkY)) return;
+        long key = Chunk.key(chunkX, chunkY);
+        if (!client.chunks.contains(key)) {
+            // A closed client's LEAVE request may already have dropped its subscriptions
+            if (client.chunks.size() >= MAX_CHUNK_SUBSCRIPTIONS || client.closed.get()) return;
+            client.chunks.add(key);
+            chunkSubscribers.computeIfAbsent(key, k -> new ArrayList<>()).add(client);
+        }
+        ByteBuffer missing = chunkUpdate(chunkX, chunkY, version);
+        if (missing != null) client.send(missing);
+    }
+
+    // Sends a client the whole chunk after edits to it were refused before reaching editTile
+    private void resync(ClientHandler client, int chunkX, int chunkY) {
+        client.resyncChunks.remove(Chunk.key(chunkX, chunkY));
+        if (gameWorld.hasChunk(chunkX, chunkY) && !client.closed.get()) client.send(chunkUpdate(chunkX, chunkY, -1));
+    }
+
+    private void unsubscribe(ClientHandler client, long key) {
+        if (client.chunks.remove(key)) removeSubscriber(client, key);
+    }
+
+    private void removeSubscriber(ClientHandler client, long key) {
+        List<ClientHandler> subscribers = chunkSubscribers.get(key);
+        subscribers.remove(client);
+        if (subscribers.isEmpty()) chunkSubscribers.remove(key);
+    }
+
+    // One frame with what a client holding version of a chunk is missing, or null if nothing
+    private ByteBuffer chunkUpdate(int chunkX, int chunkY, int version) {
+        encodeBuffer.clear();
+        if (!tileEdits.writeSince(encodeBuffer, chunkX, chunkY, version)) return null;
+        encodeBuffer.flip();
+        return ByteBuffer.allocate(encodeBuffer.remaining()).put(encodeBuffer).flip();
+    }
+
+    // Fills nearby with the IDs of players within the interest radius of a point; returns how many
+    private int queryNearby(int x, int y) {
+        int radius = Value.InterestRadius * Value.TileSize;
+        int count;
+        while ((count = playerGrid.queryRadius(x, y, radius, nearby)) == nearby.length) {
+            nearby = new int[nearby.length * 2];
+        }
+        return count;
+    }
+
+    private ByteBuffer encode(Snapshot current, Snapshot base, int maxFrameSize) {
+        int size = current.maxEncodedSize(base, maxFrameSize);
+        if (encodeBuffer.capacity() < size) encodeBuffer = ByteBuffer.allocate(Math.max(size, encodeBuffer.capacity() * 2));
+        encodeBuffer.clear();
+        current.writeDelta(encodeBuffer, base, maxFrameSize);
+        encodeBuffer.flip();
+        return ByteBuffer.allocate(encodeBuffer.remaining()).put(encodeBuffer).flip();
+    }
+
+    // Every player starts at the server's spawn point, which its first snapshot reports back; the
+    // client's prediction is corrected to it like any other server position
+    // The position a client asks for is ignored unless joinAnywhere
+    private void join(ClientHandler client, int x, int y) {
+        if (client.joined) return;
+        if (!joinAnywhere) {
+            x = CollisionResolver.unpackX(spawn);
+            y = CollisionResolver.unpackY(spawn);
+        }
+        client.setState(0, x, y, Protocol.animationId("idleDown"));
+        client.joined = true;
+
+        // The newcomer learns its ID now and who is around from its first, full snapshot
+        ByteBuffer welcome = ByteBuffer.allocate(Protocol.WELCOME_SIZE);
+        Protocol.writeWelcome(welcome, client.id);
+        client.send(welcome.flip());
+
+        ByteBuffer joined = ByteBuffer.allocate(Protocol.JOIN_SIZE);
+        Protocol.writeJoin(joined, client.id, x, y);
+        pendingEvents.add(new Event(joined.flip(), x, y, client));
+    }
+
+    private void leave(ClientHandler client) {
+        if (client.joined) {
+            int[] state = new int[4];
+            client.readState(state);
+            ByteBuffer left = ByteBuffer.allocate(Protocol.LEAVE_SIZE);
+            Protocol.writeLeave(left, client.id);
+            pendingEvents.add(new Event(left.flip(), state[1], state[2], client));
+        }
+        chunkRequests.add(new ChunkRequest(client, Protocol.LEAVE, 0, 0, 0));
+        if (client.id > 0) players.compareAndSet(client.id, client, null); // The ID is freed by the tick thread
+    }
+
+    // Entity IDs are reused so they stay small and fit the protocol's u16 field; -1 when all are taken
+    private int allocateId() {
+        Integer free = freeIds.poll();
+        if (free != null) return free;
+        int id = nextId.getAndIncrement();
+        return id <= 0xFFFF ? id : -1;
+    }
 
+    // One selector thread; connections and flush requests from other threads arrive through queues
+    final class IoWorker implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<ClientHandler> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private Thread thread;
+
+        IoWorker() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            wakeup();
+        }
+
+        void requestFlush(ClientHandler handler) {
+            pendingFlushes.add(handler);
+            if (Thread.currentThread() != thread) wakeup(); // Our own requests are drained after the selected keys
+        }
+
+        private void wakeup() {
+            if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+        }
+
+        @Override
         public void run() {
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+                wakeupPending.set(false);
+                registerPending();
 
-                String playerPosition;
-                while ((playerPosition = in.readLine()) != null) {
-                    System.out.println("Received: " + playerPosition);
-                    broadcast(playerPosition, this);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ClientHandler handler = (ClientHandler) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) handler.read();
+                        if (key.isValid() && key.isWritable()) handler.flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        handler.close();
+                    }
                 }
+                flushPending();
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((ClientHandler) key.attachment()).close();
+            }
+            try {
+                selector.close();
             } catch (IOException e) {
                 e.printStackTrace();
-            } finally {
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                ClientHandler handler = new ClientHandler(channel, this, allocateId());
+                if (handler.id < 0) {
+                    System.err.println("No free entity IDs, refusing connection");
+                    handler.close();
+                    continue;
+                }
                 try {
-                    socket.close();
+                    handler.key = channel.register(selector, SelectionKey.OP_READ, handler);
+                    players.set(handler.id, handler);
+                    clientHandlers.add(handler);
                 } catch (IOException e) {
                     e.printStackTrace();
+                    handler.close();
+                }
+            }
+        }
+
+        private void flushPending() {
+            ClientHandler handler;
+            while ((handler = pendingFlushes.poll()) != null) {
+                try {
+                    handler.flush();
+                } catch (IOException | CancelledKeyException e) {
+                    handler.close();
+                }
+            }
+        }
+    }
+
+    // UDP clients, keyed by address in the transport; each gets a ClientHandler as its attachment
+    final class UdpPeers implements UdpTransport.Listener {
+        @Override
+        public void onConnect(UdpTransport.Connection connection) {
+            ClientHandler handler = new ClientHandler(connection, allocateId());
+            if (handler.id < 0) {
+                System.err.println("No free entity IDs, refusing connection");
+                udp.disconnect(connection);
+                return;
+            }
+            connection.setAttachment(handler);
+            players.set(handler.id, handler);
+            clientHandlers.add(handler);
+        }
+
+        @Override
+        public void onFrame(UdpTransport.Connection connection, ByteBuffer in, int frame) {
+            GameServer.this.onFrame((ClientHandler) connection.getAttachment(), in, frame);
+        }
+
+        @Override
+        public void onDisconnect(UdpTransport.Connection connection) {
+            ((ClientHandler) connection.getAttachment()).close();
+        }
+    }
+
+    // One connection. read() and flush() run on its worker thread, send() may run on any thread.
+    // With virtual threads there is no worker: readLoop() and writeLoop() run on their own threads.
+    // Over UDP there is no channel or worker and send() hands buffers to the transport instead.
+    final class ClientHandler {
+        private final SocketChannel channel;
+        private final IoWorker worker;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(Value.ReadBufferSize); // Holds at least one whole frame
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer[] writeBatch = new ByteBuffer[64]; // Gathering write, reused
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final UdpTransport.Connection udpConnection; // Null for TCP
+        private SelectionKey key;
+        private volatile boolean readsPaused;
+        private volatile Thread reader, writer; // Virtual-thread mode only
+
+        // Latest player state, written by join on this connection's worker, then by the tick thread
+        final int id;
+        volatile boolean joined;
+        private final StampedLock stateLock = new StampedLock();
+        private int seq, x, y, animation;
+        volatile int ackedTick = Protocol.NO_BASELINE; // Newest snapshot the client has applied
+        private double inputBudget = Value.TicksPerSecond; // Inputs this client may still send right now
+        private long budgetTime = System.nanoTime();
+        private int queuedSeq; // Newest input queued, worker only
+        private double editBudget = Value.TileEditsPerSecond; // Tile edits this client may still send right now
+        private long editBudgetTime = System.nanoTime();
+        final Set<Long> chunks = new HashSet<>(); // Subscribed chunks by Chunk.key, tick thread only
+        final Set<Long> resyncChunks = ConcurrentHashMap.newKeySet(); // Chunks with a RESYNC queued, by Chunk.key
+        // Inputs for the next tick as seq << 16 | buttons << 8 | animation, written by this
+        // connection's worker and drained by the tick thread; the volatile head publishes each slot
+        private final long[] inputs = new long[INPUT_QUEUE_SIZE];
+        private volatile int inputHead, inputTail;
+        SnapshotRing views; // What this client was sent on recent ticks, tick thread only
+
+        ClientHandler(SocketChannel channel, IoWorker worker, int id) {
+            this.channel = channel;
+            this.worker = worker;
+            this.udpConnection = null;
+            this.id = id;
+        }
+
+        ClientHandler(UdpTransport.Connection connection, int id) {
+            this.channel = null;
+            this.worker = null;
+            this.udpConnection = connection;
+            this.id = id;
+        }
+
+        void setState(int seq, int x, int y, int animation) {
+            long stamp = stateLock.writeLock();
+            this.seq = seq;
+            this.x = x;
+            this.y = y;
+            this.animation = animation;
+            stateLock.unlockWrite(stamp);
+        }
+
+        // Queues one game loop tick of input for the next server tick. Repeated inputs are ignored and so
+        // are inputs beyond Value.TicksPerSecond a second, so a client cannot move faster than the game allows.
+        void queueInput(int inputSeq, int buttons, int animation) {
+            if (!joined || inputSeq <= queuedSeq) return;
+            long now = System.nanoTime();
+            inputBudget = Math.min(Value.TicksPerSecond, inputBudget + (now - budgetTime) * Value.TicksPerSecond / 1e9);
+            budgetTime = now;
+            if (inputBudget < 1) return;
+            int head = inputHead;
+            if (head - inputTail == inputs.length) return; // Tick thread is behind; lost like a dropped packet
+            inputBudget--;
+            inputs[head & (inputs.length - 1)] = (long) inputSeq << 16 | (buttons & 0xFF) << 8 | (animation & 0xFF);
+            inputHead = head + 1;
+            queuedSeq = inputSeq;
+        }
+
+        // Whether one more TILE_CHANGE fits in Value.TileEditsPerSecond, worker only
+        boolean spendTileEdit() {
+            long now = System.nanoTime();
+            editBudget = Math.min(Value.TileEditsPerSecond, editBudget + (now - editBudgetTime) * Value.TileEditsPerSecond / 1e9);
+            editBudgetTime = now;
+            if (editBudget < 1) return false;
+            editBudget--;
+            return true;
+        }
+
+        // Tick thread: steps this player through every queued input in order
+        void simulate() {
+            int tail = inputTail;
+            int head = inputHead;
+            if (tail == head) return;
+            int px = x, py = y, lastSeq = seq, lastAnimation = animation; // Only the tick thread writes these now
+            for (; tail != head; tail++) {
+                long input = inputs[tail & (inputs.length - 1)];
+                long moved = gameWorld.step(px, py, (int) (input >>> 8) & 0xFF);
+                px = CollisionResolver.unpackX(moved);
+                py = CollisionResolver.unpackY(moved);
+                lastSeq = (int) (input >>> 16);
+                lastAnimation = (int) input & 0xFF;
+            }
+            inputTail = tail;
+            setState(lastSeq, px, py, lastAnimation);
+        }
+
+        // Copies seq, x, y and animation into out without blocking the writer
+        void readState(int[] out) {
+            long stamp = stateLock.tryOptimisticRead();
+            copyState(out);
+            if (!stateLock.validate(stamp)) {
+                stamp = stateLock.readLock();
+                try {
+                    copyState(out);
+                } finally {
+                    stateLock.unlockRead(stamp);
+                }
+            }
+        }
+
+        private void copyState(int[] out) {
+            out[0] = seq;
+            out[1] = x;
+            out[2] = y;
+            out[3] = animation;
+        }
+
+        // Acks only move forward; a stale or bogus one just means a bigger delta or a full snapshot
+        void acknowledge(int tick) {
+            if (tick > ackedTick) ackedTick = tick;
+        }
+
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+
+            // Hand every complete frame to the server, keep a partial one for the next read
+            int frame = 0;
+            int size;
+            while ((size = Protocol.frameSize(readBuffer, frame)) >= 0) {
+                if (size < Protocol.HEADER_SIZE || size > readBuffer.capacity()) {
+                    System.err.println("Bad frame length " + size + ", disconnecting " + channel.getRemoteAddress());
+                    close();
+                    return;
+                }
+                if (frame + size > readBuffer.limit()) break;
+                if (!Protocol.isComplete(readBuffer, frame, size)) {
+                    System.err.println("Malformed frame of type " + Protocol.type(readBuffer, frame) + ", disconnecting " + channel.getRemoteAddress());
+                    close();
+                    return;
+                }
+                onFrame(this, readBuffer, frame);
+                if (closed.get()) return;
+                frame += size;
+            }
+            readBuffer.position(frame);
+            readBuffer.compact();
+        }
+
+        // Queues a buffer for this client; the buffer must not be modified afterwards
+        void send(ByteBuffer buffer) {
+            if (closed.get()) return;
+            if (udpConnection != null) {
+                udp.send(udpConnection, buffer, Protocol.isReliable(Protocol.type(buffer, buffer.position())));
+                return;
+            }
+            if (queuedBytes.addAndGet(buffer.remaining()) > Value.WriteQueueLimit) {
+                System.err.println("Write queue over " + Value.WriteQueueLimit + " bytes, disconnecting slow client");
+                close();
+                return;
+            }
+            writeQueue.add(buffer);
+            if (worker == null) {
+                LockSupport.unpark(writer);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                worker.requestFlush(this);
+            }
+        }
+
+        // Virtual-thread mode: blocking reads, parked while the client is not keeping up with its output
+        void readLoop() {
+            try {
+                while (!closed.get()) {
+                    if (queuedBytes.get() >= Value.WriteQueueHighWatermark) {
+                        readsPaused = true; // writeLoop() clears it at the low watermark
+                        // writeLoop() may have drained the queue before it could see the flag, and would not unpark us
+                        if (queuedBytes.get() <= Value.WriteQueueLowWatermark) readsPaused = false;
+                        while (readsPaused && !closed.get()) LockSupport.park(this);
+                    }
+                    read();
                 }
-                clientHandlers.remove(this);
+            } catch (IOException e) {
+                close();
             }
         }
 
-        void sendMessage(String message) {
-            out.println(message);
+        // Virtual-thread mode: blocking gathering writes of whatever send() queued
+        void writeLoop() {
+            try {
+                while (!closed.get()) {
+                    int count = 0;
+                    for (ByteBuffer buffer : writeQueue) {
+                        writeBatch[count++] = buffer;
+                        if (count == writeBatch.length) break;
+                    }
+                    if (count == 0) {
+                        LockSupport.park(this); // send() unparks us
+                        continue;
+                    }
+
+                    while (writeBatch[count - 1].hasRemaining()) {
+                        queuedBytes.addAndGet(-channel.write(writeBatch, 0, count));
+                    }
+                    for (int i = 0; i < count; i++) writeQueue.poll();
+                    Arrays.fill(writeBatch, 0, count, null);
+
+                    if (readsPaused && queuedBytes.get() <= Value.WriteQueueLowWatermark) {
+                        readsPaused = false;
+                        LockSupport.unpark(reader);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            if (closed.get()) return;
+            flushScheduled.set(false); // Cleared first so a concurrent send() schedules another flush
+
+            boolean socketFull = false;
+            while (!socketFull) {
+                int count = 0;
+                for (ByteBuffer buffer : writeQueue) {
+                    writeBatch[count++] = buffer;
+                    if (count == writeBatch.length) break;
+                }
+                if (count == 0) break;
+
+                long written = channel.write(writeBatch, 0, count);
+                queuedBytes.addAndGet(-written);
+                for (int i = 0; i < count; i++) {
+                    if (writeBatch[i].hasRemaining()) {
+                        socketFull = true;
+                        break;
+                    }
+                    writeQueue.poll();
+                }
+                Arrays.fill(writeBatch, 0, count, null);
+            }
+
+            // Pause this client's input while it is not keeping up with its output
+            long queued = queuedBytes.get();
+            if (!readsPaused && queued >= Value.WriteQueueHighWatermark) {
+                readsPaused = true;
+            } else if (readsPaused && queued <= Value.WriteQueueLowWatermark) {
+                readsPaused = false;
+            }
+            key.interestOps((readsPaused ? 0 : SelectionKey.OP_READ) | (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            clientHandlers.remove(this);
+            leave(this);
+            if (key != null) key.cancel();
+            LockSupport.unpark(reader);
+            LockSupport.unpark(writer);
+            if (udpConnection != null) {
+                udp.disconnect(udpConnection);
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            writeQueue.clear();
         }
     }
 }
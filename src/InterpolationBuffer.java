@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+// Jitter buffer for remote players. Every snapshot adds one timestamped sample per visible
+// player; rendering happens Value.InterpolationDelayMs in the past, between the two samples
+// around that time, so players move smoothly at any frame rate even though snapshots come
+// at the server tick rate and arrive unevenly. When samples run out, movement is carried on
+// for at most Value.MaxExtrapolationMs and then holds. Written by the network thread and read
+// by the game loop under one lock; nothing is allocated after a player is first seen.
+public class InterpolationBuffer {
+
+    private static final int SAMPLES = 16; // Per player, 0.8 s at 20 snapshots a second
+    private static final long FORGET_AFTER_NANOS = 2_000_000_000L; // Gone players are dropped from the active list
+
+    private static final class Track {
+        final long[] time = new long[SAMPLES];
+        final int[] x = new int[SAMPLES], y = new int[SAMPLES], animation = new int[SAMPLES];
+        int newest = -1; // Index of the newest sample
+        int size;
+        long goneAt = Long.MAX_VALUE; // Time of the first snapshot without this player
+        long lastSnapshot; // Time of the last snapshot that had this player
+        int activeIndex = -1;
+
+        void add(long t, int px, int py, int anim) {
+            if (size > 0 && time[newest] == t) { // Another frame of the same tick
+                x[newest] = px;
+                y[newest] = py;
+                animation[newest] = anim;
+                return;
+            }
+            newest = (newest + 1) % SAMPLES;
+            time[newest] = t;
+            x[newest] = px;
+            y[newest] = py;
+            animation[newest] = anim;
+            if (size < SAMPLES) size++;
+        }
+
+        int sample(int age) { // 0 is the newest
+            return Math.floorMod(newest - age, SAMPLES);
+        }
+    }
+
+    private final Track[] tracks = new Track[0x10000]; // By entity ID
+    private int[] active = new int[64]; // Entity IDs with a track in use
+    private int activeCount;
+
+    private final long tickNanos = 1_000_000_000L / Value.ServerTickRate;
+    private long clockOffset = Long.MAX_VALUE; // Local time minus server time, smallest seen so far
+    private int lastTick = Integer.MIN_VALUE;
+    private long lastTickTime;
+
+    // Records the players of a snapshot, except excludeEntity (our own, which is predicted).
+    // May be called again for the same tick as more of its frames arrive.
+    public synchronized void addSnapshot(Snapshot snapshot, int excludeEntity) {
+        long time = toLocalTime(snapshot.getTick());
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            int id = snapshot.getEntity(i);
+            if (id == excludeEntity) continue;
+            Track track = tracks[id];
+            if (track == null) track = tracks[id] = new Track();
+            if (track.activeIndex < 0) {
+                track.size = 0;
+                track.newest = -1;
+                activate(id, track);
+            }
+            track.goneAt = Long.MAX_VALUE;
+            track.lastSnapshot = time;
+            track.add(time, snapshot.getX(i), snapshot.getY(i), snapshot.getAnimation(i));
+        }
+
+        // Players missing from this snapshot left or walked out of range
+        for (int i = activeCount - 1; i >= 0; i--) {
+            Track track = tracks[active[i]];
+            if (track.lastSnapshot == time) continue;
+            if (track.goneAt == Long.MAX_VALUE) track.goneAt = time;
+            if (time - track.goneAt > FORGET_AFTER_NANOS) deactivate(track);
+        }
+    }
+
+    // Writes where each remote player should be drawn now into the arrays, up to their length.
+    // Returns how many players were written.
+    public synchronized int sample(int[] ids, int[] xs, int[] ys, int[] animations) {
+        long renderTime = System.nanoTime() - Value.InterpolationDelayMs * 1_000_000L;
+        long maxExtrapolation = Value.MaxExtrapolationMs * 1_000_000L;
+        int count = 0;
+        for (int i = 0; i < activeCount && count < ids.length; i++) {
+            Track track = tracks[active[i]];
+            if (track.goneAt <= renderTime || track.size == 0) continue;
+
+            // Newest sample at or before the render time
+            int age = 0;
+            while (age < track.size && track.time[track.sample(age)] > renderTime) age++;
+            if (age == track.size) continue; // Not visible yet at the render time
+
+            int from = track.sample(age);
+            int x, y;
+            if (age > 0) {
+                // Between two samples
+                int to = track.sample(age - 1);
+                double t = (double) (renderTime - track.time[from]) / (track.time[to] - track.time[from]);
+                x = (int) Math.round(track.x[from] + (track.x[to] - track.x[from]) * t);
+                y = (int) Math.round(track.y[from] + (track.y[to] - track.y[from]) * t);
+            } else if (track.size > 1) {
+                // Past the newest sample: keep going along the last movement, for a bounded time
+                int previous = track.sample(1);
+                double t = (double) Math.min(renderTime - track.time[from], maxExtrapolation) / (track.time[from] - track.time[previous]);
+                x = (int) Math.round(track.x[from] + (track.x[from] - track.x[previous]) * t);
+                y = (int) Math.round(track.y[from] + (track.y[from] - track.y[previous]) * t);
+            } else {
+                x = track.x[from];
+                y = track.y[from];
+            }
+            ids[count] = active[i];
+            xs[count] = x;
+            ys[count] = y;
+            animations[count] = track.animation[from];
+            count++;
+        }
+        return count;
+    }
+
+    // Server ticks map to local time through the smallest offset seen, the snapshot that was
+    // delayed least; the offset creeps up slowly so a lasting rise in latency is followed too.
+    private long toLocalTime(int tick) {
+        if (tick == lastTick) return lastTickTime; // Later frames of the same tick
+        long serverTime = tick * tickNanos;
+        long offset = System.nanoTime() - serverTime;
+        if (offset < clockOffset || clockOffset == Long.MAX_VALUE) {
+            clockOffset = offset;
+        } else {
+            clockOffset += (offset - clockOffset) / 100;
+        }
+        lastTick = tick;
+        lastTickTime = serverTime + clockOffset;
+        return lastTickTime;
+    }
+
+    private void activate(int id, Track track) {
+        if (activeCount == active.length) active = Arrays.copyOf(active, activeCount * 2);
+        track.activeIndex = activeCount;
+        active[activeCount++] = id;
+    }
+
+    private void deactivate(Track track) {
+        int last = active[--activeCount];
+        active[track.activeIndex] = last;
+        tracks[last].activeIndex = track.activeIndex;
+        track.activeIndex = -1;
+    }
+}
@@ -6,12 +6,19 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URL;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
 
 public class MainMenu extends JFrame {
 
     private static final int BUTTON_WIDTH = 240; // Button width
     private static final int BUTTON_HEIGHT = 80; // Button height
 
+    private final JButton singlePlayerButton;
+    private final JButton multiplayerButton;
+    private final JProgressBar progressBar = new JProgressBar(0, 100); // Shown while startup work runs
+    private AssetLoader assets; // Set on the EDT once the images are loaded
+
     public MainMenu() {
         setTitle(Value.GameName);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -27,8 +34,8 @@ public class MainMenu extends JFrame {
         panel.setLayout(null); // Allow absolute positioning
 
         // Create custom buttons with images and animations
-        JButton singlePlayerButton = createImageButton("Single Player");
-        JButton multiplayerButton = createImageButton("Multiplayer");
+        singlePlayerButton = createImageButton("Single Player");
+        multiplayerButton = createImageButton("Multiplayer");
         JButton settingsButton = createImageButton("Settings");
         JButton exitButton = createImageButton("Exit");
 
@@ -56,15 +63,21 @@ public class MainMenu extends JFrame {
         panel.add(settingsButton);
         panel.add(exitButton);
 
+        // Progress bar along the bottom edge, hidden until there is work to show
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        progressBar.setBounds(buttonX - BUTTON_WIDTH - 10, (int) (panelHeight * 0.86), BUTTON_WIDTH * 2 + 20, 20);
+        panel.add(progressBar);
+
         add(panel); // Add the background panel to the frame
     }
 
     private JButton createImageButton(String buttonText) {
         JButton button = new JButton(buttonText);
         BufferedImage img = loadImage(Value.BUTTON_IMAGE_PATH);
-        if (img != null) {
-            button.setIcon(new ImageIcon(img.getScaledInstance(BUTTON_WIDTH, BUTTON_HEIGHT, Image.SCALE_SMOOTH)));
-        }
+        // Scaled once, the same icon is restored after every click
+        ImageIcon icon = img == null ? null : new ImageIcon(img.getScaledInstance(BUTTON_WIDTH, BUTTON_HEIGHT, Image.SCALE_SMOOTH));
+        button.setIcon(icon);
 
         button.setPreferredSize(new Dimension(BUTTON_WIDTH, BUTTON_HEIGHT)); // Set preferred size
         button.setContentAreaFilled(false);
@@ -90,8 +103,8 @@ public class MainMenu extends JFrame {
 
             @Override
             public void mouseReleased(MouseEvent e) {
-                if (img != null) {
-                    button.setIcon(new ImageIcon(img.getScaledInstance(BUTTON_WIDTH, BUTTON_HEIGHT, Image.SCALE_SMOOTH))); // Restore the original icon
+                if (icon != null) {
+                    button.setIcon(icon); // Restore the original icon
                 }
                 button.repaint(); // Remove overlay when mouse is released
             }
@@ -100,6 +113,52 @@ public class MainMenu extends JFrame {
         return button;
     }
 
+    // Checks that the map layers match on a background thread, repairing them if not, then loads
+    // the game's images. Both ways of starting a game need the layers and the images, so they wait
+    // until this is done.
+    public void validateLayers() {
+        singlePlayerButton.setEnabled(false);
+        multiplayerButton.setEnabled(false);
+        runInBackground("Checking map layers",
+                progress -> RepairSystem.synchronizeLayers(Value.backgroundLayerPath, Value.collisionLayerPath, progress),
+                this::loadAssets);
+    }
+
+    // Decodes the images on the AssetLoader's worker pool while the menu stays responsive
+    private void loadAssets() {
+        AssetLoader loader = new AssetLoader();
+        runInBackground("Loading assets", loader::load, () -> {
+            assets = loader;
+            singlePlayerButton.setEnabled(true);
+            multiplayerButton.setEnabled(true);
+        });
+    }
+
+    // Runs task off the EDT with the progress bar showing its progress (0 to 1), then runs done on the EDT
+    private void runInBackground(String label, Consumer<DoubleConsumer> task, Runnable done) {
+        progressBar.setString(label);
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+
+        SwingWorker<Void, Void> worker = new SwingWorker<>() {
+            @Override
+            protected Void doInBackground() {
+                task.accept(fraction -> setProgress((int) Math.min(100, fraction * 100)));
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                progressBar.setVisible(false);
+                done.run();
+            }
+        };
+        worker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) progressBar.setValue((Integer) e.getNewValue());
+        });
+        worker.execute();
+    }
+
     private BufferedImage loadImage(String path) {
         URL imageUrl = getClass().getResource(path);
         try {
@@ -130,16 +189,22 @@ public class MainMenu extends JFrame {
     private void startSinglePlayer() {
         System.out.println("Starting Single Player Game...");
         dispose(); // Close the main menu
+        startGame(null);
+    }
+
+    // Opens the game window, playing through the client if there is one
+    private void startGame(GameClient client) {
         try {
             JFrame frame = new JFrame(Value.GameName);
-            GamePanel gamePanel = new GamePanel();
+            GamePanel gamePanel = new GamePanel(client, assets);
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
             frame.setResizable(false); // Prevent resizing
             frame.setSize(gamePanel.getPreferredSize());
             frame.setLocationRelativeTo(null);
-            frame.setContentPane(gamePanel);
+            frame.add(gamePanel); // Heavyweight canvas, rendered by its own game loop
             frame.pack();
             frame.setVisible(true);
+            gamePanel.requestFocus();
         } catch (Exception e) {
             System.err.println("An error occurred while running the game: " + e.getMessage());
             e.printStackTrace();
@@ -149,7 +214,12 @@ public class MainMenu extends JFrame {
     private void startMultiplayer() {
         System.out.println("Connecting to Multiplayer...");
         dispose();
-        new GameClient("45.76.193.42", 12345);  // Connect to the server
+        GameClient client = new GameClient(Value.ServerAddress, Value.ServerPort);  // Connect to the server
+        if (!client.isConnected()) {
+            System.err.println("Could not reach the server, playing offline");
+            client = null;
+        }
+        startGame(client);
     }
 
     private void showSettings() {
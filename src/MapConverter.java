@@ -0,0 +1,193 @@
+import java.io.*;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class MapConverter {
+
+    // Returns the binary map for a CSV layer (e.g. "Map/layer1.txt" -> "Map/layer1.map"),
+    // converting it first if the binary file is missing or older than the CSV.
+    public static Path ensureConverted(String csvPath) throws IOException {
+        File csvFile = new File("res/" + csvPath);
+        URL csvUrl = csvFile.exists() ? csvFile.toURI().toURL() : MapConverter.class.getResource("/" + csvPath);
+        if (csvUrl == null) {
+            throw new FileNotFoundException("Layer not found: " + csvPath);
+        }
+
+        // Write next to the CSV when running from the source tree, otherwise into a temp folder
+        String mapPath = binaryPathFor(csvPath);
+        Path out = csvFile.exists() ? Paths.get("res", mapPath)
+                : Paths.get(System.getProperty("java.io.tmpdir"), Value.GameName, mapPath);
+
+        URLConnection connection = csvUrl.openConnection();
+        long csvModified = connection.getLastModified();
+        if (Files.exists(out) && Files.getLastModifiedTime(out).toMillis() >= csvModified) {
+            return out;
+        }
+
+        try (InputStream in = connection.getInputStream()) {
+            convert(in, out, Value.ChunkSize);
+        }
+        WorldStore.discard(out); // Edits saved to the old map do not apply to a changed CSV
+        System.out.println("Converted " + csvPath + " to " + out);
+        return out;
+    }
+
+    public static String binaryPathFor(String csvPath) {
+        int dot = csvPath.lastIndexOf('.');
+        return (dot < 0 ? csvPath : csvPath.substring(0, dot)) + ".map";
+    }
+
+    // Streams a CSV layer into the chunked binary format described in ChunkedMap.
+    // Only one band of chunkSize rows is held in memory at a time. Short rows are
+    // padded with 0, long rows are cut to the width of the first row.
+    public static void convert(InputStream csv, Path out, int chunkSize) throws IOException {
+        Files.createDirectories(out.toAbsolutePath().getParent());
+        Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+
+        try (InputStream in = new BufferedInputStream(csv, 1 << 16);
+             FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            int chunkTiles = chunkSize * chunkSize;
+            ByteBuffer chunkBuffer = ByteBuffer.allocate(chunkTiles * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+            // First row decides the map width
+            short[] firstRow = new short[64];
+            int width = 0;
+            int height = 0;
+            int chunksX = 0;
+            short[] band = null; // chunkSize rows of chunksX * chunkSize tiles
+            int bandRow = 0;
+            long position = ChunkedMap.HEADER_SIZE;
+
+            int col = 0;
+            int value = 0;
+            boolean inValue = false;
+            boolean rowHasData = false;
+            int c;
+            do {
+                c = in.read();
+                if (c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    inValue = true;
+                    rowHasData = true;
+                } else if (c == ',' || c == '\n' || c == -1) {
+                    if (inValue || c == ',') {
+                        if (band == null) {
+                            if (col == firstRow.length) firstRow = Arrays.copyOf(firstRow, col * 2);
+                            firstRow[col] = (short) value;
+                        } else if (col < width) {
+                            band[bandRow * chunksX * chunkSize + col] = (short) value;
+                        }
+                        col++;
+                    }
+                    value = 0;
+                    inValue = false;
+
+                    if ((c == '\n' || c == -1) && rowHasData) {
+                        if (band == null) {
+                            width = col;
+                            chunksX = (width + chunkSize - 1) / chunkSize;
+                            band = new short[chunkSize * chunksX * chunkSize];
+                            System.arraycopy(firstRow, 0, band, 0, width);
+                        } else if (col != width) {
+                            System.err.println("Row " + height + " has " + col + " columns, expected " + width);
+                        }
+                        height++;
+                        bandRow++;
+                        if (bandRow == chunkSize) {
+                            position = writeBand(channel, band, chunksX, chunkSize, chunkBuffer, position);
+                            Arrays.fill(band, (short) 0);
+                            bandRow = 0;
+                        }
+                    }
+                    if (c == '\n') {
+                        col = 0;
+                        rowHasData = false;
+                    }
+                }
+                // spaces and '\r' are ignored
+            } while (c != -1);
+
+            if (bandRow > 0) {
+                position = writeBand(channel, band, chunksX, chunkSize, chunkBuffer, position);
+            }
+
+            // Chunk index: chunks were written in order, so offsets are sequential
+            int chunksY = (height + chunkSize - 1) / chunkSize;
+            long indexOffset = position;
+            ByteBuffer index = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            long chunkBytes = (long) chunkTiles * Short.BYTES;
+            for (long i = 0, count = (long) chunksX * chunksY; i < count; i++) {
+                if (!index.hasRemaining()) {
+                    index.flip();
+                    position += writeFully(channel, index, position);
+                    index.clear();
+                }
+                index.putLong(ChunkedMap.HEADER_SIZE + i * chunkBytes);
+            }
+            index.flip();
+            writeFully(channel, index, position);
+
+            ByteBuffer header = ByteBuffer.allocate(ChunkedMap.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(ChunkedMap.MAGIC)
+                    .putShort(ChunkedMap.VERSION)
+                    .putShort((short) chunkSize)
+                    .putInt(width)
+                    .putInt(height)
+                    .putInt(chunksX)
+                    .putInt(chunksY)
+                    .putLong(indexOffset);
+            header.flip();
+            writeFully(channel, header, 0);
+        }
+
+        Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Writes one row of chunks from the band buffer, returns the next file position
+    private static long writeBand(FileChannel channel, short[] band, int chunksX, int chunkSize,
+                                  ByteBuffer chunkBuffer, long position) throws IOException {
+        int bandWidth = chunksX * chunkSize;
+        for (int cx = 0; cx < chunksX; cx++) {
+            chunkBuffer.clear();
+            for (int row = 0; row < chunkSize; row++) {
+                int start = row * bandWidth + cx * chunkSize;
+                for (int col = 0; col < chunkSize; col++) {
+                    chunkBuffer.putShort(band[start + col]);
+                }
+            }
+            chunkBuffer.flip();
+            position += writeFully(channel, chunkBuffer, position);
+        }
+        return position;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    // Converts a CSV layer from the command line: MapConverter <layer.txt> <layer.map>
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: MapConverter <layer.txt> <layer.map>");
+            return;
+        }
+        try (InputStream in = new FileInputStream(args[0])) {
+            convert(in, Paths.get(args[1]), Value.ChunkSize);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Bad network on one machine: outgoing datagrams are dropped with Value.SimulatedLossPercent
+// and held back for Value.SimulatedLatencyMs plus up to Value.SimulatedJitterMs, so they may
+// also arrive out of order. Used by UdpTransport on its own thread when any of these is set.
+public class NetworkSimulator {
+
+    private static final class Delayed {
+        final long due;
+        final long order; // Keeps datagrams with the same due time in send order
+        final ByteBuffer datagram;
+        final SocketAddress target;
+
+        Delayed(long due, long order, ByteBuffer datagram, SocketAddress target) {
+            this.due = due;
+            this.order = order;
+            this.datagram = datagram;
+            this.target = target;
+        }
+    }
+
+    private final PriorityQueue<Delayed> queue = new PriorityQueue<>((a, b) ->
+            a.due != b.due ? Long.compare(a.due, b.due) : Long.compare(a.order, b.order));
+    private final Random random = new Random();
+    private long sent;
+
+    public static boolean isEnabled() {
+        return Value.SimulatedLossPercent > 0 || Value.SimulatedLatencyMs > 0 || Value.SimulatedJitterMs > 0;
+    }
+
+    // Takes over a datagram that would have been sent now
+    public void send(ByteBuffer datagram, SocketAddress target, long now) {
+        if (random.nextDouble() * 100 < Value.SimulatedLossPercent) return;
+        long delay = Value.SimulatedLatencyMs * 1_000_000L;
+        if (Value.SimulatedJitterMs > 0) delay += (long) (random.nextDouble() * Value.SimulatedJitterMs * 1_000_000L);
+        ByteBuffer copy = ByteBuffer.allocate(datagram.remaining()).put(datagram).flip();
+        queue.add(new Delayed(now + delay, sent++, copy, target));
+    }
+
+    // Sends every datagram that is due
+    public void flush(DatagramChannel channel, long now) {
+        while (!queue.isEmpty() && queue.peek().due <= now) {
+            Delayed delayed = queue.poll();
+            try {
+                channel.send(delayed.datagram, delayed.target);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Nanoseconds until the next datagram is due, or -1 if none is waiting
+    public long nextDue(long now) {
+        return queue.isEmpty() ? -1 : Math.max(0, queue.peek().due - now);
+    }
+}
@@ -1,97 +1,101 @@
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.event.KeyEvent;
-import java.awt.image.BufferedImage;
-import java.io.IOException;
-import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Player {
 
-    private final TileSetting tileSetting;
+    private final World world;
     private final HitboxData hitboxData;
-    private int x; // Player's x-coordinate
-    private int y; // Player's y-coordinate
-    private BufferedImage currentImage; // Current image of the player
+    private int x; // Player's x-coordinate in world pixels
+    private int y; // Player's y-coordinate in world pixels
+    private Sprite currentImage; // Current image of the player
     private String state; // Current state of the player (idle, walking, running)
     private int animationFrame; // Current frame of the animation
     private int animationCounter = 0; // Counter to handle animation speed
 
-    private Map<String, BufferedImage[]> animations; // Map to store animations for different states
+    private Map<String, Sprite[]> animations; // Map to store animations for different states
 
     private static final int TILE_SIZE = Value.TileSize; // Size of each tile in pixels
-    private static final int WALK_SPEED = Value.WALK_SPEED; // Slow walking speed (to match tile movement)
-    private static final int RUN_SPEED = Value.RUN_SPEED; // Faster running speed
+    private static final int HITBOX_OFFSET = PlayerMovement.HITBOX_OFFSET;
+    private static final int HITBOX_SIZE = PlayerMovement.HITBOX_SIZE;
+    // Animation states and the frames of each, named like basePath1.png .. basePathN.png
+    private static final String[] ANIMATION_STATES = {
+            "idleUp", "idleDown", "idleLeft", "idleRight",
+            "walkingUp", "walkingDown", "walkingLeft", "walkingRight",
+            "runningUp", "runningDown", "runningLeft", "runningRight"};
+    private static final String[] ANIMATION_PATHS = {
+            "/player/Idle/idleup", "/player/Idle/idledown", "/player/Idle/idleleft", "/player/Idle/idleright",
+            "/player/Walk/walkup", "/player/Walk/walkdown", "/player/Walk/walkleft", "/player/Walk/walkright",
+            "/player/Run/runup", "/player/Run/rundown", "/player/Run/runleft", "/player/Run/runright"};
+    private static final int[] ANIMATION_FRAMES = {4, 4, 4, 4, 6, 6, 6, 6, 8, 8, 8, 8};
+    private static final int MAX_PENDING_INPUTS = 256; // Unconfirmed inputs kept for replay, about 4 s at 60 ticks
     // Reference to the game map for collision detection
     // Reference to the tile setting for collision detection
 
+    private int prevX, prevY; // Position at the previous tick, used for render interpolation
+
     private boolean isRunning = false; // Flag to check if running is enabled
     private boolean isMoving = false; // Flag to check if the player is moving
-    private boolean spacePressed = false; // Flag to check if space bar is pressed
-    private boolean upPressed = false, downPressed = false, leftPressed = false, rightPressed = false; // Direction flags
-
-    public Player(int startX, int startY, TileSetting tilesetting, HitboxData hitboxData) {
+    // Key state is written by the EDT and read by the game loop thread
+    private volatile boolean spacePressed = false; // Flag to check if space bar is pressed
+    private volatile boolean upPressed = false, downPressed = false, leftPressed = false, rightPressed = false; // Direction flags
+
+    // Multiplayer: every tick's input is numbered, sent to the server and applied locally at once.
+    // Inputs the server has not confirmed yet are replayed on top of each position it reports.
+    private GameClient client;
+    private int inputSeq; // Sequence number of the last input sent
+    private int oldestPending = 1; // Sequence number of the oldest input the server has not confirmed
+    private final int[] pendingInputs = new int[MAX_PENDING_INPUTS]; // Indexed by sequence number
+    private final int[] serverState = new int[3]; // seq, x, y
+
+    public Player(int startX, int startY, World world, HitboxData hitboxData, SpriteAtlas atlas,
+                  AssetLoader assets) {
         this.x = startX; // Initialize x-coordinate
         this.y = startY; // Initialize y-coordinate
-        this.tileSetting = tilesetting;
+        this.prevX = startX;
+        this.prevY = startY;
+        this.world = world;
         this.hitboxData = hitboxData;
         this.state = "idleDown"; // Default state when the player is not moving
         this.animationFrame = 0; // Start with the first frame of the animation
-        loadImages();
+        loadImages(atlas, assets);
         setState("idleDown"); // Set the initial state
     }
 
     public void setGameMap() {
     }
 
-    private void loadImages() {
-        animations = new HashMap<>();
-        animations.put("idleUp", loadAnimationImages("/player/Idle/idleup", 4));
-        animations.put("idleDown", loadAnimationImages("/player/Idle/idledown", 4));
-        animations.put("idleLeft", loadAnimationImages("/player/Idle/idleleft", 4));
-        animations.put("idleRight", loadAnimationImages("/player/Idle/idleright", 4));
-        animations.put("walkingUp", loadAnimationImages("/player/Walk/walkup", 6));
-        animations.put("walkingDown", loadAnimationImages("/player/Walk/walkdown", 6));
-        animations.put("walkingLeft", loadAnimationImages("/player/Walk/walkleft", 6));
-        animations.put("walkingRight", loadAnimationImages("/player/Walk/walkright", 6));
-        animations.put("runningUp", loadAnimationImages("/player/Run/runup", 8));
-        animations.put("runningDown", loadAnimationImages("/player/Run/rundown", 8));
-        animations.put("runningLeft", loadAnimationImages("/player/Run/runleft", 8));
-        animations.put("runningRight", loadAnimationImages("/player/Run/runright", 8));
+    // Plays through a server connection instead of purely locally
+    public void setClient(GameClient client) {
+        this.client = client;
     }
 
-    private BufferedImage[] loadAnimationImages(String basePath, int count) {
-        BufferedImage[] images = new BufferedImage[count];
-        for (int i = 0; i < count; i++) {
-            String path = basePath + (i + 1) + ".png";
-            URL imageUrl = getClass().getResource(path);
-            if (imageUrl == null) {
-                System.err.println("Resource not found: " + path);
-            } else {
-                try {
-                    BufferedImage original = ImageIO.read(imageUrl);
-                    if (original != null) {
-                        images[i] = scaleImage(original);
-                    } else {
-                        System.err.println("Failed to read image: " + path);
-                    }
-                } catch (IOException e) {
-                    System.err.println("IOException while reading image: " + path);
-                    e.printStackTrace();
-                }
+    // Every animation frame's image path, in the order of ANIMATION_STATES, for the AssetLoader
+    public static String[] imagePaths() {
+        int count = 0;
+        for (int frames : ANIMATION_FRAMES) count += frames;
+        String[] paths = new String[count];
+        int i = 0;
+        for (int state = 0; state < ANIMATION_PATHS.length; state++) {
+            for (int frame = 0; frame < ANIMATION_FRAMES[state]; frame++) {
+                paths[i++] = ANIMATION_PATHS[state] + (frame + 1) + ".png";
             }
         }
-        return images;
+        return paths;
     }
 
-    private BufferedImage scaleImage(BufferedImage img) {
-        Image tmp = img.getScaledInstance(TILE_SIZE, TILE_SIZE, Image.SCALE_SMOOTH);
-        BufferedImage scaledImg = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = scaledImg.createGraphics();
-        g2d.drawImage(tmp, 0, 0, null);
-        g2d.dispose();
-        return scaledImg;
+    // Missing frames stay null, as they did when each was loaded here
+    private void loadImages(SpriteAtlas atlas, AssetLoader assets) {
+        animations = new HashMap<>();
+        String[] paths = imagePaths();
+        int first = 0;
+        for (int state = 0; state < ANIMATION_STATES.length; state++) {
+            String[] statePaths = Arrays.copyOfRange(paths, first, first + ANIMATION_FRAMES[state]);
+            animations.put(ANIMATION_STATES[state], atlas.addAll(assets.get(statePaths), true));
+            first += ANIMATION_FRAMES[state];
+        }
     }
 
     public void setState(String newState) {
@@ -105,7 +109,20 @@ public class Player {
         }
     }
 
+    // Advances the player by one fixed game loop tick
     public void update() {
+        prevX = x;
+        prevY = y;
+        if (client != null) reconcile();
+        int input = PlayerMovement.input(upPressed, downPressed, leftPressed, rightPressed, spacePressed);
+        move(input);
+        if (client != null) {
+            inputSeq++;
+            pendingInputs[inputSeq % MAX_PENDING_INPUTS] = input;
+            oldestPending = Math.max(oldestPending, inputSeq - MAX_PENDING_INPUTS + 1);
+            client.sendInput(inputSeq, input, state);
+        }
+
         int animationSpeed = isMoving ? (isRunning ? Value.RUNNING_ANIMATION_SPEED : Value.WALKING_ANIMATION_SPEED) : Value.IDLE_ANIMATION_SPEED;
         animationCounter++;
         if (animationCounter >= animationSpeed) {
@@ -117,66 +134,59 @@ public class Player {
         }
     }
 
-    byte pd = 0;
+    // Moves the player by one tick of input (PlayerMovement bits)
+    private void move(int input) {
+        isRunning = (input & PlayerMovement.RUN) != 0;
 
-    public void handleKeyPress(int keyCode) {
-        int moveAmount = isRunning ? RUN_SPEED : WALK_SPEED;
+        // Disable movement if pressing opposite directions simultaneously
+        boolean up = (input & PlayerMovement.UP) != 0 && (input & PlayerMovement.DOWN) == 0;
+        boolean down = (input & PlayerMovement.DOWN) != 0 && (input & PlayerMovement.UP) == 0;
+        boolean left = (input & PlayerMovement.LEFT) != 0 && (input & PlayerMovement.RIGHT) == 0;
+        boolean right = (input & PlayerMovement.RIGHT) != 0 && (input & PlayerMovement.LEFT) == 0;
+
+        isMoving = PlayerMovement.isMoving(input);
+        long moved = world.step(x, y, input);
+        x = CollisionResolver.unpackX(moved);
+        y = CollisionResolver.unpackY(moved);
+        hitboxData.update(x + HITBOX_OFFSET, x + HITBOX_OFFSET + HITBOX_SIZE, y + HITBOX_OFFSET, y + HITBOX_OFFSET + HITBOX_SIZE);
+
+        setState(determineState(up, down, left, right));
+    }
 
-        boolean newUpPressed = upPressed, newDownPressed = downPressed;
-        boolean newLeftPressed = leftPressed, newRightPressed = rightPressed;
+    // Restarts from the server's position for the last input it applied and replays the newer
+    // ones. When prediction was right this lands exactly where the player already is.
+    private void reconcile() {
+        if (!client.pollServerState(serverState)) return;
+        int confirmed = serverState[0];
+        if (confirmed < oldestPending - 1 || confirmed > inputSeq) return; // Older than what we already dropped
+        oldestPending = confirmed + 1;
+
+        int replayX = serverState[1];
+        int replayY = serverState[2];
+        for (int seq = oldestPending; seq <= inputSeq; seq++) {
+            long moved = world.step(replayX, replayY, pendingInputs[seq % MAX_PENDING_INPUTS]);
+            replayX = CollisionResolver.unpackX(moved);
+            replayY = CollisionResolver.unpackY(moved);
+        }
+        if (replayX != x || replayY != y) {
+            x = prevX = replayX; // Snap rather than interpolate across a correction
+            y = prevY = replayY;
+        }
+    }
 
-        // Check key presses
+    // Key events only record which keys are held, movement happens in update()
+    public void handleKeyPress(int keyCode) {
         if (keyCode == KeyEvent.VK_SPACE) spacePressed = true;
-        if (keyCode == KeyEvent.VK_UP) newUpPressed = true;
-        if (keyCode == KeyEvent.VK_DOWN) newDownPressed = true;
-        if (keyCode == KeyEvent.VK_LEFT) newLeftPressed = true;
-        if (keyCode == KeyEvent.VK_RIGHT) newRightPressed = true;
-
-        // Disable movement if pressing opposite directions simultaneously
-        if (newUpPressed == newDownPressed) newUpPressed = newDownPressed = false;
-        if (newLeftPressed == newRightPressed) newLeftPressed = newRightPressed = false;
-
-        // Temporary position variables for collision and boundary checking
-        int newX = x;
-        int newY = y;
-        int dx = x;
-        int dy = y;
-
-        // Update temporary position based on key presses
-        if (newUpPressed)    { dy -= moveAmount; newY -= 16; pd = 1; }
-        if (newDownPressed)  { dy += moveAmount; newY += 16; pd = 2; }
-        if (newLeftPressed)  { dx -= moveAmount; newX -= 16; pd = 3; }
-        if (newRightPressed) { dx += moveAmount; newX += 16; pd = 4; }
-
-        // Prepare position array [dx, dy, newX, newY] with consistent hitbox size
-        int[] position = { dx, dy , newX , newY };
-
-        int playerHitboxSize = 48; // Consistent player hitbox size
-
-        // Update player hitbox based on temporary position
-        hitboxData.update(newX, newX + playerHitboxSize, newY, newY + playerHitboxSize);
-
-        // Check for collisions
-        boolean canMove = tileSetting.isCollidable(position, pd, hitboxData);
-        if (canMove) {
-            x = position[0];
-            y = position[1];
-        } // Update actual player position if no collision
-
-        isMoving = newUpPressed || newDownPressed || newLeftPressed || newRightPressed;
-        isRunning = spacePressed;
-        setState(determineState(newUpPressed, newDownPressed, newLeftPressed, newRightPressed));
-        upPressed = newUpPressed;
-        downPressed = newDownPressed;
-        leftPressed = newLeftPressed;
-        rightPressed = newRightPressed;
+        if (keyCode == KeyEvent.VK_UP) upPressed = true;
+        if (keyCode == KeyEvent.VK_DOWN) downPressed = true;
+        if (keyCode == KeyEvent.VK_LEFT) leftPressed = true;
+        if (keyCode == KeyEvent.VK_RIGHT) rightPressed = true;
     }
 
-    String lastPressedDirection = "Down";
+    volatile String lastPressedDirection = "Down";
     public void handleKeyRelease(int keyCode) {
         if (keyCode == KeyEvent.VK_SPACE) {
             spacePressed = false;
-            isRunning = false;
         } else if (keyCode == KeyEvent.VK_UP) {
             upPressed = false; lastPressedDirection = "Up";
         } else if (keyCode == KeyEvent.VK_DOWN) {
@@ -186,10 +196,6 @@ public class Player {
         } else if (keyCode == KeyEvent.VK_RIGHT) {
             rightPressed = false; lastPressedDirection = "Right";
         }
-
-        isMoving = upPressed || downPressed || leftPressed || rightPressed;
-
-        if (!isMoving) setState("idle" + lastPressedDirection);
     }
 
     private String determineState(boolean upPressed, boolean downPressed, boolean leftPressed, boolean rightPressed) {
@@ -200,16 +206,33 @@ public class Player {
         return "idle"+lastPressedDirection;
     }
 
-    public void paint(Graphics g) {
+    // Draws the player between its last two tick positions; alpha is the game loop's interpolation factor
+    public void paint(Graphics g, double alpha, int camX, int camY) {
+        int drawX = getRenderX(alpha) - camX;
+        int drawY = getRenderY(alpha) - camY;
         if (currentImage != null) {
-            g.drawImage(currentImage, x, y, null);
+            currentImage.draw(g, drawX, drawY);
         } else {
-            g.drawRect(x, y, TILE_SIZE, TILE_SIZE); // Draw a placeholder rectangle if the image is null
+            g.drawRect(drawX, drawY, TILE_SIZE, TILE_SIZE); // Draw a placeholder rectangle if the image is null
             System.err.println("Current image is null.");
         }
     }
 
+    // Draws another player at a screen position. Its animation (a Protocol animation ID) runs off
+    // the caller's tick counter since remote players have no per-player animation state.
+    public void paintRemote(Graphics g, int animation, int ticks, int drawX, int drawY) {
+        String remoteState = Protocol.animationName(animation);
+        Sprite[] frames = animations.get(remoteState);
+        if (frames == null) return;
+        int speed = remoteState.startsWith("running") ? Value.RUNNING_ANIMATION_SPEED
+                : remoteState.startsWith("walking") ? Value.WALKING_ANIMATION_SPEED : Value.IDLE_ANIMATION_SPEED;
+        Sprite frame = frames[(ticks / speed) % frames.length];
+        if (frame != null) frame.draw(g, drawX, drawY);
+    }
+
     public int getX() { return x; }
     public int getY() { return y; }
+    public int getRenderX(double alpha) { return (int) Math.round(prevX + (x - prevX) * alpha); }
+    public int getRenderY(double alpha) { return (int) Math.round(prevY + (y - prevY) * alpha); }
 
 }
@@ -0,0 +1,36 @@
+// Player movement for one game loop tick, shared by the client's local prediction and the
+// server's authoritative simulation so both land on exactly the same position for the same
+// inputs. Inputs are a bitmask of the held buttons. No AWT, so the server can run it.
+public final class PlayerMovement {
+
+    public static final int UP = 1, DOWN = 2, LEFT = 4, RIGHT = 8, RUN = 16;
+
+    public static final int HITBOX_OFFSET = Value.TileSize / 4; // Hitbox is the middle half of the sprite
+    public static final int HITBOX_SIZE = Value.TileSize / 2;
+
+    private PlayerMovement() {
+    }
+
+    public static int input(boolean up, boolean down, boolean left, boolean right, boolean run) {
+        return (up ? UP : 0) | (down ? DOWN : 0) | (left ? LEFT : 0) | (right ? RIGHT : 0) | (run ? RUN : 0);
+    }
+
+    // Opposite directions held together cancel out
+    public static boolean isMoving(int input) {
+        return ((input & UP) != 0) != ((input & DOWN) != 0) || ((input & LEFT) != 0) != ((input & RIGHT) != 0);
+    }
+
+    // Moves the player's top-left corner (x, y) by one tick of input, sliding along solid tiles.
+    // Returns the new corner packed with CollisionResolver.pack.
+    public static long step(CollisionResolver resolver, int x, int y, int input) {
+        int speed = (input & RUN) != 0 ? Value.RUN_SPEED : Value.WALK_SPEED;
+        int dx = ((input & RIGHT) != 0 ? speed : 0) - ((input & LEFT) != 0 ? speed : 0);
+        int dy = ((input & DOWN) != 0 ? speed : 0) - ((input & UP) != 0 ? speed : 0);
+        if (dx == 0 && dy == 0) return CollisionResolver.pack(x, y);
+
+        // Sweep the hitbox through the collision grid
+        long resolved = resolver.resolve(x + HITBOX_OFFSET, y + HITBOX_OFFSET, HITBOX_SIZE, HITBOX_SIZE, dx, dy);
+        return CollisionResolver.pack(CollisionResolver.unpackX(resolved) - HITBOX_OFFSET,
+                CollisionResolver.unpackY(resolved) - HITBOX_OFFSET);
+    }
+}
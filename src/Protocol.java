@@ -0,0 +1,297 @@
+import java.nio.ByteBuffer;
+
+// Binary wire format shared by GameServer and GameClient.
+// Every message is one frame: [u16 length][u8 type][payload], big-endian, where length
+// counts the type byte and the payload. Fields have fixed widths and offsets, so frames
+// are written straight into an outgoing buffer and read in place from the receive buffer
+// with absolute gets; nothing is allocated or parsed per field.
+public final class Protocol {
+
+    public static final int LENGTH_SIZE = 2;
+    public static final int HEADER_SIZE = 3; // Length and type
+    public static final int MAX_FRAME_SIZE = LENGTH_SIZE + 0xFFFF;
+
+    // Message types
+    public static final byte JOIN = 1;        // u16 entity, i32 x, i32 y
+    public static final byte LEAVE = 2;       // u16 entity
+    public static final byte INPUT = 3;       // u32 seq, u8 buttons (PlayerMovement bits), u8 animation
+    public static final byte TILE_CHANGE = 4; // i32 tileX, i32 tileY, u16 tileID, a client asking to edit a tile
+    public static final byte WELCOME = 5;     // u16 entity, the ID the server gave the receiving client
+    public static final byte SNAPSHOT = 6;    // u32 tick, u32 baseTick, u16 count, count entries (see below)
+    public static final byte ACK = 7;         // u32 tick, the newest snapshot the client has applied
+    public static final byte PING = 8;        // i64 time, echoed back unchanged in a PONG
+    public static final byte PONG = 9;        // i64 time from the PING
+    public static final byte TILE_EDITS = 10; // i32 chunkX, i32 chunkY, u32 version, u16 count, count edits (see below)
+    public static final byte CHUNK_DATA = 11; // i32 chunkX, i32 chunkY, u32 version, then every u16 tile of the chunk
+    public static final byte CHUNK_SUBSCRIBE = 12;   // i32 chunkX, i32 chunkY, u32 version the client already has
+    public static final byte CHUNK_UNSUBSCRIBE = 13; // i32 chunkX, i32 chunkY
+
+    public static final int JOIN_SIZE = HEADER_SIZE + 10;
+    public static final int LEAVE_SIZE = HEADER_SIZE + 2;
+    public static final int INPUT_SIZE = HEADER_SIZE + 6;
+    public static final int TILE_CHANGE_SIZE = HEADER_SIZE + 10;
+    public static final int WELCOME_SIZE = HEADER_SIZE + 2;
+    public static final int SNAPSHOT_HEADER_SIZE = HEADER_SIZE + 10;
+    public static final int ACK_SIZE = HEADER_SIZE + 4;
+    public static final int PING_SIZE = HEADER_SIZE + 8; // Also the size of a PONG
+    public static final int TILE_EDITS_HEADER_SIZE = HEADER_SIZE + 14;
+    public static final int TILE_EDIT_SIZE = 4;
+    public static final int CHUNK_DATA_HEADER_SIZE = HEADER_SIZE + 12;
+    public static final int CHUNK_SUBSCRIBE_SIZE = HEADER_SIZE + 12;
+    public static final int CHUNK_UNSUBSCRIBE_SIZE = HEADER_SIZE + 8;
+
+    // Every edit to a chunk counts up its version. A tile edit is u16 tile index in the chunk (rows first),
+    // u16 tileID; TILE_EDITS holds edits version + 1 to version + count in order. CHUNK_DATA is the whole
+    // chunk as of version, sent instead when the edits a client is missing are no longer kept.
+
+    // A snapshot entry is u16 entity, u8 fields, then only the fields whose bit is set, in bit order:
+    // u32 seq, i32 x, i32 y, u8 animation. A snapshot with baseTick NO_BASELINE lists every entity
+    // with ALL_FIELDS; otherwise it lists only what changed since baseTick, and REMOVED entities.
+    // seq is the last INPUT the server applied for that player.
+    public static final int NO_BASELINE = -1;
+    public static final int FIELD_SEQ = 1, FIELD_X = 2, FIELD_Y = 4, FIELD_ANIMATION = 8;
+    public static final int ALL_FIELDS = FIELD_SEQ | FIELD_X | FIELD_Y | FIELD_ANIMATION;
+    public static final int REMOVED = 16;
+    public static final int MAX_SNAPSHOT_ENTRY_SIZE = 16;
+
+    // Field offsets from the start of a frame
+    private static final int TYPE = 2;
+    private static final int ENTITY = HEADER_SIZE;
+    private static final int JOIN_X = ENTITY + 2, JOIN_Y = JOIN_X + 4;
+    private static final int INPUT_SEQ = HEADER_SIZE, INPUT_BUTTONS = INPUT_SEQ + 4, INPUT_ANIMATION = INPUT_BUTTONS + 1;
+    private static final int TILE_X = HEADER_SIZE, TILE_Y = TILE_X + 4, TILE_ID = TILE_Y + 4;
+    private static final int SNAPSHOT_TICK = HEADER_SIZE, SNAPSHOT_BASE = SNAPSHOT_TICK + 4, SNAPSHOT_COUNT = SNAPSHOT_BASE + 4;
+    private static final int ACK_TICK = HEADER_SIZE;
+    private static final int PING_TIME = HEADER_SIZE;
+    private static final int CHUNK_X = HEADER_SIZE, CHUNK_Y = CHUNK_X + 4, CHUNK_VERSION = CHUNK_Y + 4, EDIT_COUNT = CHUNK_VERSION + 4;
+
+    // Player animation states, sent as their index
+    private static final String[] ANIMATIONS = {
+            "idleUp", "idleDown", "idleLeft", "idleRight",
+            "walkingUp", "walkingDown", "walkingLeft", "walkingRight",
+            "runningUp", "runningDown", "runningLeft", "runningRight"};
+
+    private Protocol() {
+    }
+
+    public static int animationId(String state) {
+        for (int i = 0; i < ANIMATIONS.length; i++) {
+            if (ANIMATIONS[i].equals(state)) return i;
+        }
+        return 1; // idleDown
+    }
+
+    public static String animationName(int id) {
+        return id >= 0 && id < ANIMATIONS.length ? ANIMATIONS[id] : "idleDown";
+    }
+
+    // Writers append one frame at the buffer's position and advance it
+
+    public static void writeJoin(ByteBuffer out, int entity, int x, int y) {
+        header(out, JOIN_SIZE, JOIN);
+        out.putShort((short) entity).putInt(x).putInt(y);
+    }
+
+    public static void writeLeave(ByteBuffer out, int entity) {
+        header(out, LEAVE_SIZE, LEAVE);
+        out.putShort((short) entity);
+    }
+
+    public static void writeInput(ByteBuffer out, int seq, int buttons, int animation) {
+        header(out, INPUT_SIZE, INPUT);
+        out.putInt(seq).put((byte) buttons).put((byte) animation);
+    }
+
+    public static void writeTileChange(ByteBuffer out, int tileX, int tileY, int tileID) {
+        header(out, TILE_CHANGE_SIZE, TILE_CHANGE);
+        out.putInt(tileX).putInt(tileY).putShort((short) tileID);
+    }
+
+    public static void writeWelcome(ByteBuffer out, int entity) {
+        header(out, WELCOME_SIZE, WELCOME);
+        out.putShort((short) entity);
+    }
+
+    public static void writeAck(ByteBuffer out, int tick) {
+        header(out, ACK_SIZE, ACK);
+        out.putInt(tick);
+    }
+
+    public static void writePing(ByteBuffer out, long time) {
+        header(out, PING_SIZE, PING);
+        out.putLong(time);
+    }
+
+    public static void writePong(ByteBuffer out, long time) {
+        header(out, PING_SIZE, PONG);
+        out.putLong(time);
+    }
+
+    // TILE_EDITS is beginTileEdits, its edits, then endTileEdits with the index beginTileEdits returned
+    public static int beginTileEdits(ByteBuffer out, int chunkX, int chunkY, int version) {
+        int frame = out.position();
+        header(out, TILE_EDITS_HEADER_SIZE, TILE_EDITS);
+        out.putInt(chunkX).putInt(chunkY).putInt(version).putShort((short) 0);
+        return frame;
+    }
+
+    public static void writeTileEdit(ByteBuffer out, int index, int tileID) {
+        out.putShort((short) index).putShort((short) tileID);
+    }
+
+    public static void endTileEdits(ByteBuffer out, int frame, int count) {
+        out.putShort(frame, (short) (out.position() - frame - LENGTH_SIZE));
+        out.putShort(frame + EDIT_COUNT, (short) count);
+    }
+
+    public static void writeChunkData(ByteBuffer out, int chunkX, int chunkY, int version, short[] tiles) {
+        header(out, CHUNK_DATA_HEADER_SIZE + tiles.length * 2, CHUNK_DATA);
+        out.putInt(chunkX).putInt(chunkY).putInt(version);
+        for (short tile : tiles) {
+            out.putShort(tile);
+        }
+    }
+
+    public static void writeChunkSubscribe(ByteBuffer out, int chunkX, int chunkY, int version) {
+        header(out, CHUNK_SUBSCRIBE_SIZE, CHUNK_SUBSCRIBE);
+        out.putInt(chunkX).putInt(chunkY).putInt(version);
+    }
+
+    public static void writeChunkUnsubscribe(ByteBuffer out, int chunkX, int chunkY) {
+        header(out, CHUNK_UNSUBSCRIBE_SIZE, CHUNK_UNSUBSCRIBE);
+        out.putInt(chunkX).putInt(chunkY);
+    }
+
+    // A snapshot is beginSnapshot, its entries, then endSnapshot with the index beginSnapshot returned,
+    // which fills in the length and entry count. Keep it under MAX_FRAME_SIZE.
+    public static int beginSnapshot(ByteBuffer out, int tick, int baseTick) {
+        int frame = out.position();
+        header(out, SNAPSHOT_HEADER_SIZE, SNAPSHOT);
+        out.putInt(tick).putInt(baseTick).putShort((short) 0);
+        return frame;
+    }
+
+    public static void writeSnapshotEntry(ByteBuffer out, int entity, int fields, int seq, int x, int y, int animation) {
+        out.putShort((short) entity).put((byte) fields);
+        if ((fields & FIELD_SEQ) != 0) out.putInt(seq);
+        if ((fields & FIELD_X) != 0) out.putInt(x);
+        if ((fields & FIELD_Y) != 0) out.putInt(y);
+        if ((fields & FIELD_ANIMATION) != 0) out.put((byte) animation);
+    }
+
+    public static void endSnapshot(ByteBuffer out, int frame, int count) {
+        out.putShort(frame, (short) (out.position() - frame - LENGTH_SIZE));
+        out.putShort(frame + SNAPSHOT_COUNT, (short) count);
+    }
+
+    private static void header(ByteBuffer out, int frameSize, byte type) {
+        out.putShort((short) (frameSize - LENGTH_SIZE)).put(type);
+    }
+
+    // Readers take the buffer and the frame's start index and never move the position
+
+    // Size of the whole frame starting at index, or -1 if its length prefix is not complete yet
+    public static int frameSize(ByteBuffer in, int frame) {
+        if (in.limit() - frame < LENGTH_SIZE) return -1;
+        return LENGTH_SIZE + (in.getShort(frame) & 0xFFFF);
+    }
+
+    public static byte type(ByteBuffer in, int frame) { return in.get(frame + TYPE); }
+
+    // JOIN, LEAVE and WELCOME all start with the entity ID
+    public static int entity(ByteBuffer in, int frame) { return in.getShort(frame + ENTITY) & 0xFFFF; }
+
+    public static int joinX(ByteBuffer in, int frame) { return in.getInt(frame + JOIN_X); }
+    public static int joinY(ByteBuffer in, int frame) { return in.getInt(frame + JOIN_Y); }
+
+    public static int inputSeq(ByteBuffer in, int frame) { return in.getInt(frame + INPUT_SEQ); }
+    public static int inputButtons(ByteBuffer in, int frame) { return in.get(frame + INPUT_BUTTONS) & 0xFF; }
+    public static int inputAnimation(ByteBuffer in, int frame) { return in.get(frame + INPUT_ANIMATION) & 0xFF; }
+
+    public static int tileX(ByteBuffer in, int frame) { return in.getInt(frame + TILE_X); }
+    public static int tileY(ByteBuffer in, int frame) { return in.getInt(frame + TILE_Y); }
+    public static int tileID(ByteBuffer in, int frame) { return in.getShort(frame + TILE_ID) & 0xFFFF; }
+
+    public static int ackTick(ByteBuffer in, int frame) { return in.getInt(frame + ACK_TICK); }
+
+    public static long pingTime(ByteBuffer in, int frame) { return in.getLong(frame + PING_TIME); } // PING or PONG
+
+    // TILE_EDITS, CHUNK_DATA, CHUNK_SUBSCRIBE and CHUNK_UNSUBSCRIBE all start with the chunk coordinates
+    public static int chunkX(ByteBuffer in, int frame) { return in.getInt(frame + CHUNK_X); }
+    public static int chunkY(ByteBuffer in, int frame) { return in.getInt(frame + CHUNK_Y); }
+    public static int chunkVersion(ByteBuffer in, int frame) { return in.getInt(frame + CHUNK_VERSION); } // Not in UNSUBSCRIBE
+
+    public static int editCount(ByteBuffer in, int frame) { return in.getShort(frame + EDIT_COUNT) & 0xFFFF; }
+    public static int editIndex(ByteBuffer in, int frame, int i) {
+        return in.getShort(frame + TILE_EDITS_HEADER_SIZE + i * TILE_EDIT_SIZE) & 0xFFFF;
+    }
+    public static int editTileID(ByteBuffer in, int frame, int i) {
+        return in.getShort(frame + TILE_EDITS_HEADER_SIZE + i * TILE_EDIT_SIZE + 2) & 0xFFFF;
+    }
+
+    public static int chunkTileCount(ByteBuffer in, int frame) { return (frameSize(in, frame) - CHUNK_DATA_HEADER_SIZE) / 2; }
+    public static short chunkTile(ByteBuffer in, int frame, int i) { return in.getShort(frame + CHUNK_DATA_HEADER_SIZE + i * 2); }
+
+    public static int snapshotTick(ByteBuffer in, int frame) { return in.getInt(frame + SNAPSHOT_TICK); }
+    public static int snapshotBase(ByteBuffer in, int frame) { return in.getInt(frame + SNAPSHOT_BASE); }
+    public static int snapshotCount(ByteBuffer in, int frame) { return in.getShort(frame + SNAPSHOT_COUNT) & 0xFFFF; }
+    public static int firstSnapshotEntry(int frame) { return frame + SNAPSHOT_HEADER_SIZE; }
+
+    // Snapshot entries are read at their own index; the next one starts at entry + entrySize
+    public static int entryEntity(ByteBuffer in, int entry) { return in.getShort(entry) & 0xFFFF; }
+    public static int entryFields(ByteBuffer in, int entry) { return in.get(entry + 2) & 0xFF; }
+    public static int entrySize(ByteBuffer in, int entry) { return 3 + fieldsSize(entryFields(in, entry)); }
+
+    // Value of one field that is present in the entry
+    public static int entryField(ByteBuffer in, int entry, int field) {
+        int offset = entry + 3 + fieldsSize(entryFields(in, entry) & (field - 1));
+        return field == FIELD_ANIMATION ? in.get(offset) & 0xFF : in.getInt(offset);
+    }
+
+    private static int fieldsSize(int fields) {
+        return 4 * Integer.bitCount(fields & (FIELD_SEQ | FIELD_X | FIELD_Y)) + ((fields & FIELD_ANIMATION) != 0 ? 1 : 0);
+    }
+
+    // Size of a frame of this type, or -1 for an unknown type. For SNAPSHOT, TILE_EDITS and
+    // CHUNK_DATA it is the header only, their entries follow, see isComplete.
+    public static int expectedSize(byte type) {
+        return switch (type) {
+            case JOIN -> JOIN_SIZE;
+            case LEAVE -> LEAVE_SIZE;
+            case INPUT -> INPUT_SIZE;
+            case TILE_CHANGE -> TILE_CHANGE_SIZE;
+            case WELCOME -> WELCOME_SIZE;
+            case SNAPSHOT -> SNAPSHOT_HEADER_SIZE;
+            case ACK -> ACK_SIZE;
+            case PING, PONG -> PING_SIZE;
+            case TILE_EDITS -> TILE_EDITS_HEADER_SIZE;
+            case CHUNK_DATA -> CHUNK_DATA_HEADER_SIZE;
+            case CHUNK_SUBSCRIBE -> CHUNK_SUBSCRIBE_SIZE;
+            case CHUNK_UNSUBSCRIBE -> CHUNK_UNSUBSCRIBE_SIZE;
+            default -> -1;
+        };
+    }
+
+    // Frames that must arrive, in order. The others carry state that the next one replaces,
+    // so over UDP they may be lost.
+    public static boolean isReliable(byte type) {
+        return type != INPUT && type != SNAPSHOT && type != ACK && type != PING && type != PONG;
+    }
+
+    // Is a frame of a known type exactly as long as the fields it announces? size must be at least HEADER_SIZE.
+    public static boolean isComplete(ByteBuffer in, int frame, int size) {
+        byte type = type(in, frame);
+        int expected = expectedSize(type);
+        if (expected < 0 || size < expected) return false;
+        if (type == TILE_EDITS) return size == TILE_EDITS_HEADER_SIZE + editCount(in, frame) * TILE_EDIT_SIZE;
+        if (type == CHUNK_DATA) return (size - CHUNK_DATA_HEADER_SIZE) % 2 == 0;
+        if (type != SNAPSHOT) return size == expected;
+        int end = frame + size;
+        int entry = firstSnapshotEntry(frame);
+        for (int i = snapshotCount(in, frame); i > 0; i--) {
+            if (entry + 3 > end) return false;
+            entry += entrySize(in, entry);
+        }
+        return entry == end;
+    }
+}
@@ -0,0 +1,291 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Writes every Protocol frame type, reads it back and checks each field, then checks that
+// truncated, oversized and wrong-length frames are rejected by frameSize and isComplete.
+// Throws on the first mismatch. Run: java ProtocolCheck
+public class ProtocolCheck {
+
+    private static int checks;
+
+    public static void main(String[] args) {
+        roundTripFixedFrames();
+        roundTripTileEdits();
+        roundTripChunkData();
+        roundTripSnapshots();
+        rejectTruncatedFrames();
+        rejectWrongLengthFrames();
+        rejectMalformedEntries();
+        System.out.println("Protocol OK, " + checks + " checks");
+    }
+
+    private static void roundTripFixedFrames() {
+        ByteBuffer out = ByteBuffer.allocate(256);
+        Protocol.writeJoin(out, 0xFFFF, -123456, Integer.MAX_VALUE);
+        Protocol.writeLeave(out, 42);
+        Protocol.writeInput(out, 0x7FFFFFF0, PlayerMovement.UP | PlayerMovement.RUN, 11);
+        Protocol.writeTileChange(out, -1, 70000, 0xFFFF);
+        Protocol.writeWelcome(out, 7);
+        Protocol.writeAck(out, 123456789);
+        Protocol.writePing(out, Long.MIN_VALUE + 5);
+        Protocol.writePong(out, 987654321012L);
+        Protocol.writeChunkSubscribe(out, 3, -4, 99);
+        Protocol.writeChunkUnsubscribe(out, -5, 6);
+        ByteBuffer in = out.flip();
+
+        // Back to back in one buffer, as they arrive from a stream
+        int frame = 0;
+        frame = expectFrame(in, frame, Protocol.JOIN, Protocol.JOIN_SIZE);
+        check(Protocol.entity(in, 0) == 0xFFFF && Protocol.joinX(in, 0) == -123456
+                && Protocol.joinY(in, 0) == Integer.MAX_VALUE, "JOIN fields");
+        int leave = frame;
+        frame = expectFrame(in, frame, Protocol.LEAVE, Protocol.LEAVE_SIZE);
+        check(Protocol.entity(in, leave) == 42, "LEAVE entity");
+        int input = frame;
+        frame = expectFrame(in, frame, Protocol.INPUT, Protocol.INPUT_SIZE);
+        check(Protocol.inputSeq(in, input) == 0x7FFFFFF0 && Protocol.inputButtons(in, input) == (PlayerMovement.UP | PlayerMovement.RUN)
+                && Protocol.inputAnimation(in, input) == 11, "INPUT fields");
+        int tile = frame;
+        frame = expectFrame(in, frame, Protocol.TILE_CHANGE, Protocol.TILE_CHANGE_SIZE);
+        check(Protocol.tileX(in, tile) == -1 && Protocol.tileY(in, tile) == 70000 && Protocol.tileID(in, tile) == 0xFFFF,
+                "TILE_CHANGE fields");
+        int welcome = frame;
+        frame = expectFrame(in, frame, Protocol.WELCOME, Protocol.WELCOME_SIZE);
+        check(Protocol.entity(in, welcome) == 7, "WELCOME entity");
+        int ack = frame;
+        frame = expectFrame(in, frame, Protocol.ACK, Protocol.ACK_SIZE);
+        check(Protocol.ackTick(in, ack) == 123456789, "ACK tick");
+        int ping = frame;
+        frame = expectFrame(in, frame, Protocol.PING, Protocol.PING_SIZE);
+        check(Protocol.pingTime(in, ping) == Long.MIN_VALUE + 5, "PING time");
+        int pong = frame;
+        frame = expectFrame(in, frame, Protocol.PONG, Protocol.PING_SIZE);
+        check(Protocol.pingTime(in, pong) == 987654321012L, "PONG time");
+        int subscribe = frame;
+        frame = expectFrame(in, frame, Protocol.CHUNK_SUBSCRIBE, Protocol.CHUNK_SUBSCRIBE_SIZE);
+        check(Protocol.chunkX(in, subscribe) == 3 && Protocol.chunkY(in, subscribe) == -4
+                && Protocol.chunkVersion(in, subscribe) == 99, "CHUNK_SUBSCRIBE fields");
+        int unsubscribe = frame;
+        frame = expectFrame(in, frame, Protocol.CHUNK_UNSUBSCRIBE, Protocol.CHUNK_UNSUBSCRIBE_SIZE);
+        check(Protocol.chunkX(in, unsubscribe) == -5 && Protocol.chunkY(in, unsubscribe) == 6, "CHUNK_UNSUBSCRIBE fields");
+        check(frame == in.limit(), "fixed frames fill the buffer exactly");
+
+        for (int id = 0; id < 12; id++) {
+            check(Protocol.animationId(Protocol.animationName(id)) == id, "animation " + id);
+        }
+    }
+
+    private static void roundTripTileEdits() {
+        int count = 300;
+        ByteBuffer out = ByteBuffer.allocate(Protocol.TILE_EDITS_HEADER_SIZE + count * Protocol.TILE_EDIT_SIZE);
+        int frame = Protocol.beginTileEdits(out, -2, 9, 1000);
+        for (int i = 0; i < count; i++) {
+            Protocol.writeTileEdit(out, i * 3 % 1024, 0xFFFF - i);
+        }
+        Protocol.endTileEdits(out, frame, count);
+        ByteBuffer in = out.flip();
+        expectFrame(in, 0, Protocol.TILE_EDITS, in.limit());
+        check(Protocol.chunkX(in, 0) == -2 && Protocol.chunkY(in, 0) == 9 && Protocol.chunkVersion(in, 0) == 1000
+                && Protocol.editCount(in, 0) == count, "TILE_EDITS header");
+        for (int i = 0; i < count; i++) {
+            check(Protocol.editIndex(in, 0, i) == i * 3 % 1024 && Protocol.editTileID(in, 0, i) == 0xFFFF - i, "TILE_EDITS edit " + i);
+        }
+
+        // No edits is still a frame
+        out = ByteBuffer.allocate(Protocol.TILE_EDITS_HEADER_SIZE);
+        Protocol.endTileEdits(out, Protocol.beginTileEdits(out, 0, 0, 5), 0);
+        expectFrame(out.flip(), 0, Protocol.TILE_EDITS, Protocol.TILE_EDITS_HEADER_SIZE);
+    }
+
+    private static void roundTripChunkData() {
+        short[] tiles = new short[Value.ChunkSize * Value.ChunkSize];
+        Random random = new Random(11);
+        for (int i = 0; i < tiles.length; i++) tiles[i] = (short) random.nextInt(0x10000);
+        ByteBuffer out = ByteBuffer.allocate(Protocol.CHUNK_DATA_HEADER_SIZE + tiles.length * 2);
+        Protocol.writeChunkData(out, 7, 8, -1, tiles);
+        ByteBuffer in = out.flip();
+        expectFrame(in, 0, Protocol.CHUNK_DATA, in.limit());
+        check(Protocol.chunkX(in, 0) == 7 && Protocol.chunkY(in, 0) == 8 && Protocol.chunkVersion(in, 0) == -1
+                && Protocol.chunkTileCount(in, 0) == tiles.length, "CHUNK_DATA header");
+        for (int i = 0; i < tiles.length; i++) {
+            check(Protocol.chunkTile(in, 0, i) == tiles[i], "CHUNK_DATA tile " + i);
+        }
+    }
+
+    // A full snapshot large enough to need several frames, then deltas against it with changed,
+    // added and removed entities, applied the way GameClient does
+    private static void roundTripSnapshots() {
+        Random random = new Random(7);
+        Snapshot full = new Snapshot();
+        full.reset(100);
+        for (int id = 1; id <= 6000; id++) {
+            full.add(id, random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt(12));
+        }
+        List<Integer> frames = new ArrayList<>();
+        ByteBuffer in = encode(full, null, frames);
+        check(frames.size() > 1, "6000 entities span several frames, got " + frames.size());
+        Snapshot received = new Snapshot();
+        received.reset(100);
+        for (int frame : frames) {
+            check(Protocol.snapshotTick(in, frame) == 100 && Protocol.snapshotBase(in, frame) == Protocol.NO_BASELINE,
+                    "full snapshot header");
+            received.applyFrame(in, frame);
+        }
+        expectEqual(full, received);
+
+        Snapshot next = new Snapshot();
+        next.reset(101);
+        for (int i = 0; i < full.size(); i++) {
+            if (i % 10 == 0) continue; // Left
+            int x = full.getX(i) + (i % 3 == 0 ? 5 : 0); // Moved
+            int animation = i % 7 == 0 ? (full.getAnimation(i) + 1) % 12 : full.getAnimation(i);
+            next.add(full.getEntity(i), full.getSeq(i) + (i % 2), x, full.getY(i), animation);
+        }
+        for (int id = 6001; id <= 6100; id++) next.add(id, id, -id, id * 2, 3); // Joined
+
+        frames.clear();
+        in = encode(next, full, frames);
+        Snapshot delta = new Snapshot();
+        delta.copyFrom(received);
+        delta.tick = 101;
+        for (int frame : frames) {
+            check(Protocol.snapshotTick(in, frame) == 101 && Protocol.snapshotBase(in, frame) == 100, "delta snapshot header");
+            delta.applyFrame(in, frame);
+        }
+        expectEqual(next, delta);
+
+        // Nothing changed is one frame without entries
+        frames.clear();
+        in = encode(next, next, frames);
+        check(frames.size() == 1 && Protocol.snapshotCount(in, frames.get(0)) == 0, "empty delta");
+    }
+
+    private static ByteBuffer encode(Snapshot current, Snapshot base, List<Integer> frames) {
+        ByteBuffer out = ByteBuffer.allocate(current.maxEncodedSize(base));
+        current.writeDelta(out, base);
+        ByteBuffer in = out.flip();
+        int frame = 0;
+        while (frame < in.limit()) {
+            frames.add(frame);
+            int size = Protocol.frameSize(in, frame);
+            check(size <= Protocol.MAX_FRAME_SIZE, "snapshot frame under MAX_FRAME_SIZE");
+            frame = expectFrame(in, frame, Protocol.SNAPSHOT, size);
+        }
+        return in;
+    }
+
+    private static void expectEqual(Snapshot expected, Snapshot actual) {
+        check(expected.size() == actual.size(), "snapshot size " + actual.size() + ", expected " + expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            check(expected.getEntity(i) == actual.getEntity(i) && expected.getSeq(i) == actual.getSeq(i)
+                    && expected.getX(i) == actual.getX(i) && expected.getY(i) == actual.getY(i)
+                    && expected.getAnimation(i) == actual.getAnimation(i), "snapshot entity " + expected.getEntity(i));
+        }
+    }
+
+    // A frame whose length prefix or body has not fully arrived
+    private static void rejectTruncatedFrames() {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        Protocol.writeJoin(out, 1, 2, 3);
+        ByteBuffer in = out.flip();
+        check(Protocol.frameSize(in.limit(0), 0) == -1, "no length prefix");
+        check(Protocol.frameSize(in.limit(1), 0) == -1, "half a length prefix");
+        for (int available = 2; available < Protocol.JOIN_SIZE; available++) {
+            check(Protocol.frameSize(in.limit(available), 0) > available, "JOIN cut to " + available + " bytes is not complete");
+        }
+        check(Protocol.frameSize(in.limit(Protocol.JOIN_SIZE), 0) == Protocol.JOIN_SIZE, "whole JOIN");
+
+        // The largest length prefix announces MAX_FRAME_SIZE, more than any receive buffer holds
+        in = ByteBuffer.allocate(Protocol.HEADER_SIZE).putShort((short) 0xFFFF).put(Protocol.SNAPSHOT).flip();
+        check(Protocol.frameSize(in, 0) == Protocol.MAX_FRAME_SIZE, "largest frame size");
+        check(Protocol.MAX_FRAME_SIZE > Value.ReadBufferSize, "oversized frames exceed the read buffer");
+    }
+
+    // Every fixed-size type one byte short and one byte long, and unknown types
+    private static void rejectWrongLengthFrames() {
+        byte[] types = {Protocol.JOIN, Protocol.LEAVE, Protocol.INPUT, Protocol.TILE_CHANGE, Protocol.WELCOME, Protocol.ACK,
+                Protocol.PING, Protocol.PONG, Protocol.CHUNK_SUBSCRIBE, Protocol.CHUNK_UNSUBSCRIBE};
+        for (byte type : types) {
+            int size = Protocol.expectedSize(type);
+            check(Protocol.isComplete(frame(type, size), 0, size), "type " + type + " at its size");
+            check(!Protocol.isComplete(frame(type, size - 1), 0, size - 1), "type " + type + " one byte short");
+            check(!Protocol.isComplete(frame(type, size + 1), 0, size + 1), "type " + type + " one byte long");
+        }
+        for (byte type : new byte[]{0, 14, 127, -1}) {
+            check(Protocol.expectedSize(type) == -1, "type " + type + " is unknown");
+            check(!Protocol.isComplete(frame(type, 16), 0, 16), "unknown type " + type);
+        }
+        int size = Protocol.CHUNK_DATA_HEADER_SIZE + 3; // Half a tile
+        check(!Protocol.isComplete(frame(Protocol.CHUNK_DATA, size), 0, size), "odd CHUNK_DATA");
+        size = Protocol.CHUNK_DATA_HEADER_SIZE - 1;
+        check(!Protocol.isComplete(frame(Protocol.CHUNK_DATA, size), 0, size), "short CHUNK_DATA header");
+        size = Protocol.SNAPSHOT_HEADER_SIZE - 1;
+        check(!Protocol.isComplete(frame(Protocol.SNAPSHOT, size), 0, size), "short SNAPSHOT header");
+    }
+
+    // Entry counts that do not match the bytes of the frame
+    private static void rejectMalformedEntries() {
+        // TILE_EDITS announcing more edits than it holds, and holding more than it announces
+        ByteBuffer out = ByteBuffer.allocate(64);
+        int frame = Protocol.beginTileEdits(out, 0, 0, 0);
+        Protocol.writeTileEdit(out, 1, 2);
+        Protocol.writeTileEdit(out, 3, 4);
+        Protocol.endTileEdits(out, frame, 3);
+        check(!Protocol.isComplete(out.flip(), 0, Protocol.frameSize(out, 0)), "TILE_EDITS count too high");
+        out.clear();
+        frame = Protocol.beginTileEdits(out, 0, 0, 0);
+        Protocol.writeTileEdit(out, 1, 2);
+        Protocol.writeTileEdit(out, 3, 4);
+        Protocol.endTileEdits(out, frame, 1);
+        check(!Protocol.isComplete(out.flip(), 0, Protocol.frameSize(out, 0)), "TILE_EDITS count too low");
+
+        // SNAPSHOT announcing more entries than it holds
+        out.clear();
+        frame = Protocol.beginSnapshot(out, 1, Protocol.NO_BASELINE);
+        Protocol.writeSnapshotEntry(out, 1, Protocol.ALL_FIELDS, 1, 2, 3, 4);
+        Protocol.endSnapshot(out, frame, 2);
+        check(!Protocol.isComplete(out.flip(), 0, Protocol.frameSize(out, 0)), "SNAPSHOT count too high");
+
+        // An entry whose fields run past the end of the frame
+        out.clear();
+        frame = Protocol.beginSnapshot(out, 1, Protocol.NO_BASELINE);
+        Protocol.writeSnapshotEntry(out, 1, Protocol.ALL_FIELDS, 1, 2, 3, 4);
+        Protocol.endSnapshot(out, frame, 1);
+        out.putShort(frame, (short) (out.getShort(frame) - 4)); // Length now cuts the entry short
+        int size = Protocol.frameSize(out, 0);
+        check(!Protocol.isComplete(out.flip(), 0, size), "SNAPSHOT entry past the end");
+
+        // Trailing bytes after the last entry
+        out.clear();
+        frame = Protocol.beginSnapshot(out, 1, Protocol.NO_BASELINE);
+        Protocol.writeSnapshotEntry(out, 1, Protocol.FIELD_X, 0, 2, 0, 0);
+        Protocol.endSnapshot(out, frame, 1);
+        out.put((byte) 0);
+        out.putShort(frame, (short) (out.position() - frame - Protocol.LENGTH_SIZE));
+        check(!Protocol.isComplete(out.flip(), 0, Protocol.frameSize(out, 0)), "SNAPSHOT trailing bytes");
+    }
+
+    // A zero-filled frame of a type with a consistent length prefix
+    private static ByteBuffer frame(byte type, int size) {
+        ByteBuffer frame = ByteBuffer.allocate(Math.max(size, Protocol.HEADER_SIZE));
+        frame.putShort((short) (size - Protocol.LENGTH_SIZE)).put(type);
+        return frame.clear();
+    }
+
+    // Checks the frame at index and returns where the next one starts
+    private static int expectFrame(ByteBuffer in, int frame, byte type, int size) {
+        int actual = Protocol.frameSize(in, frame);
+        check(actual == size, "frame of type " + type + " has size " + actual + ", expected " + size);
+        check(frame + actual <= in.limit(), "frame of type " + type + " fits the buffer");
+        check(Protocol.type(in, frame) == type, "type " + Protocol.type(in, frame) + ", expected " + type);
+        check(Protocol.isComplete(in, frame, actual), "frame of type " + type + " is complete");
+        return frame + actual;
+    }
+
+    private static void check(boolean condition, String what) {
+        checks++;
+        if (!condition) throw new IllegalStateException("Protocol check failed: " + what);
+    }
+}
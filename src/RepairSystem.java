@@ -1,13 +1,41 @@
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.DoubleConsumer;
+
+// Makes sure layer1.txt and layer2.txt have the same rows and columns, padding them with 00 tiles
+// where they do not. Each layer is streamed once to measure it, counting rows and values the way
+// MapConverter reads them, and only a layer that is actually off is rewritten.
 public class RepairSystem {
 
-    // Method to ensure both layer1.txt and layer2.txt have equal rows and columns
-    public static void synchronizeLayers(String filePath1, String filePath2) {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Size of a layer: rows holding at least one value, and the fewest and most values in a row
+    private static final class Shape {
+        int rows;
+        int minColumns = Integer.MAX_VALUE;
+        int maxColumns;
+
+        void endRow(int columns) {
+            rows++;
+            minColumns = Math.min(minColumns, columns);
+            maxColumns = Math.max(maxColumns, columns);
+        }
+
+        boolean fits(int rows, int columns) {
+            return this.rows == rows && (rows == 0 || minColumns == columns && maxColumns == columns);
+        }
+    }
+
+    public static boolean synchronizeLayers(String filePath1, String filePath2) {
+        return synchronizeLayers(filePath1, filePath2, null);
+    }
+
+    // Returns whether a layer had to be rewritten. progress, if given, is told how much of the
+    // measuring is done, from 0 to 1, and then the same for rewriting if that is needed.
+    public static boolean synchronizeLayers(String filePath1, String filePath2, DoubleConsumer progress) {
         try {
-            // Use FileInputStream to load the files from the res folder
             File layer1File = new File("res/" + filePath1);
             File layer2File = new File("res/" + filePath2);
 
@@ -16,23 +44,22 @@ public class RepairSystem {
                 throw new FileNotFoundException("One or both files not found in the 'res/Map/' directory.");
             }
 
-            // Read both files into lists of lines using FileInputStream
-            List<String> layer1Lines = readFile(new FileInputStream(layer1File));
-            List<String> layer2Lines = readFile(new FileInputStream(layer2File));
-
-            // Determine the maximum number of rows
-            int maxRows = Math.max(layer1Lines.size(), layer2Lines.size());
-
-            // Find the maximum number of columns in both layers
-            int maxCols = Math.max(findMaxColumns(layer1Lines), findMaxColumns(layer2Lines));
+            long size1 = layer1File.length(), size2 = layer2File.length(); // Before either is rewritten
+            long total = Math.max(1, size1 + size2);
+            Shape shape1 = measure(layer1File, progress, 0, total);
+            Shape shape2 = measure(layer2File, progress, size1, total);
+            int rows = Math.max(shape1.rows, shape2.rows);
+            int columns = Math.max(shape1.maxColumns, shape2.maxColumns);
 
-            // Normalize both layers by adding missing rows and columns with "00,"
-            List<String> normalizedLayer1 = normalizeLayer(layer1Lines, maxRows, maxCols);
-            List<String> normalizedLayer2 = normalizeLayer(layer2Lines, maxRows, maxCols);
+            boolean repair1 = !shape1.fits(rows, columns);
+            boolean repair2 = !shape2.fits(rows, columns);
+            if (!repair1 && !repair2) return false;
 
-            // Write back the updated layers to their respective files
-            writeFile("res/" + filePath1, normalizedLayer1);
-            writeFile("res/" + filePath2, normalizedLayer2);
+            long rewriteTotal = Math.max(1, (repair1 ? size1 : 0) + (repair2 ? size2 : 0));
+            if (repair1) normalize(layer1File, rows, columns, progress, 0, rewriteTotal);
+            if (repair2) normalize(layer2File, rows, columns, progress, repair1 ? size1 : 0, rewriteTotal);
+            System.out.println("Padded map layers to " + columns + "x" + rows);
+            return true;
 
         } catch (FileNotFoundException e) {
             System.err.println("Error: " + e.getMessage());
@@ -41,68 +68,106 @@ public class RepairSystem {
         } catch (Exception e) {
             System.err.println("An unexpected error occurred: " + e.getMessage());
         }
+        return false;
     }
 
-
-    // Method to read file lines
-    private static List<String> readFile(InputStream inputStream) throws IOException {
-        List<String> lines = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                lines.add(line);
+    // One pass over the layer without keeping any of it: a comma ends a value, even an empty one,
+    // and a line ends the row; lines without digits are not rows
+    private static Shape measure(File file, DoubleConsumer progress, long done, long total) throws IOException {
+        Shape shape = new Shape();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int columns = 0;
+        boolean inValue = false;
+        boolean rowHasData = false;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                for (int i = 0; i < read; i++) {
+                    byte c = buffer[i];
+                    if (c >= '0' && c <= '9') {
+                        inValue = true;
+                        rowHasData = true;
+                    } else if (c == ',') {
+                        columns++;
+                        inValue = false;
+                    } else if (c == '\n') {
+                        if (rowHasData) shape.endRow(inValue ? columns + 1 : columns);
+                        columns = 0;
+                        inValue = false;
+                        rowHasData = false;
+                    }
+                    // spaces and '\r' are ignored
+                }
+                done += read;
+                if (progress != null) progress.accept((double) done / total);
             }
         }
-        return lines;
-    }
-
-    // Method to find the maximum number of columns in a layer (list of lines)
-    private static int findMaxColumns(List<String> lines) {
-        int maxColumns = 0;
-        for (String line : lines) {
-            String[] columns = line.replaceAll(" ", "").split(",");
-            maxColumns = Math.max(maxColumns, columns.length);
-        }
-        return maxColumns;
+        if (rowHasData) shape.endRow(inValue ? columns + 1 : columns);
+        return shape;
     }
 
-    // Method to normalize a layer by adding missing rows/columns filled with "00,"
-    private static List<String> normalizeLayer(List<String> lines, int maxRows, int maxCols) {
-        List<String> normalizedLines = new ArrayList<>();
-
-        // Iterate through each row and ensure it has the correct number of columns
-        for (int i = 0; i < maxRows; i++) {
-            if (i < lines.size()) {
-                // Normalize existing lines by adding missing columns
-                String[] columns = lines.get(i).replaceAll(" ", "").split(",");
-                StringBuilder newRow = new StringBuilder();
-
-                for (int j = 0; j < maxCols; j++) {
-                    if (j < columns.length) {
-                        newRow.append(columns[j]).append(",");
-                    } else {
-                        newRow.append("00,"); // Add missing "00," for columns
+    // Rewrites the layer with every row padded to columns and missing rows added, all filled with "00".
+    // It goes to a temporary file that is then renamed over the layer, so a crash never leaves half a map.
+    private static void normalize(File file, int rows, int columns, DoubleConsumer progress, long done, long total)
+            throws IOException {
+        Path target = file.toPath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file);
+             Writer out = Files.newBufferedWriter(tmp)) {
+            int rowsWritten = 0;
+            int column = 0;
+            int value = 0;
+            boolean inValue = false;
+            boolean rowHasData = false;
+            boolean end = false;
+            while (!end) {
+                int read = in.read(buffer);
+                end = read < 0;
+                if (end) {
+                    buffer[0] = '\n'; // The last row may have no line break
+                    read = 1;
+                }
+                for (int i = 0; i < read; i++) {
+                    byte c = buffer[i];
+                    if (c >= '0' && c <= '9') {
+                        value = value * 10 + (c - '0');
+                        inValue = true;
+                        rowHasData = true;
+                    } else if (c == ',' || c == '\n') {
+                        if (c == ',' || inValue) {
+                            if (column < columns) writeValue(out, value, column);
+                            column++;
+                        }
+                        if (c == '\n') {
+                            if (rowHasData) {
+                                for (; column < columns; column++) writeValue(out, 0, column);
+                                out.write('\n');
+                                rowsWritten++;
+                            }
+                            column = 0;
+                            rowHasData = false;
+                        }
+                        value = 0;
+                        inValue = false;
                     }
                 }
-                // Ensure there's no trailing extra space
-                String rowStr = newRow.toString().trim();
-                normalizedLines.add(rowStr.substring(0, rowStr.length() - 1));  // Remove last comma
-            } else {
-                // Add missing rows filled entirely with "00,"
-                String rowStr = "00,".repeat(Math.max(0, maxCols)).trim();
-                normalizedLines.add(rowStr.substring(0, rowStr.length() - 1));  // Remove last comma
+                if (end) break;
+                done += read;
+                if (progress != null) progress.accept((double) done / total);
+            }
+            for (; rowsWritten < rows; rowsWritten++) {
+                for (int col = 0; col < columns; col++) writeValue(out, 0, col);
+                out.write('\n');
             }
         }
-        return normalizedLines;
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    // Method to write the normalized lines back to a file
-    private static void writeFile(String filePath, List<String> lines) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-            for (String line : lines) {
-                writer.write(line);
-                writer.newLine();
-            }
-        }
+    // Tile IDs are written with at least two digits, like the layers are drawn up
+    private static void writeValue(Writer out, int value, int column) throws IOException {
+        if (column > 0) out.write(',');
+        if (value < 10) out.write('0');
+        out.write(Integer.toString(value));
     }
 }
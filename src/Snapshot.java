@@ -0,0 +1,173 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Every player's state at one server tick, kept as parallel arrays sorted by entity ID.
+// The server encodes a snapshot as a delta against the one a client last acknowledged;
+// the client rebuilds it by applying that delta to its own copy of the same baseline.
+public class Snapshot {
+
+    int tick = Integer.MIN_VALUE;
+    int count;
+    int[] entity = new int[16], seq = new int[16], x = new int[16], y = new int[16], animation = new int[16];
+
+    // Scratch arrays for applying deltas, swapped with the ones above
+    private int[] nextEntity = new int[16], nextSeq = new int[16], nextX = new int[16], nextY = new int[16], nextAnimation = new int[16];
+
+    public int getTick() { return tick; }
+    public int size() { return count; }
+
+    void reset(int tick) {
+        this.tick = tick;
+        this.count = 0;
+    }
+
+    void copyFrom(Snapshot other) {
+        ensureCapacity(other.count);
+        System.arraycopy(other.entity, 0, entity, 0, other.count);
+        System.arraycopy(other.seq, 0, seq, 0, other.count);
+        System.arraycopy(other.x, 0, x, 0, other.count);
+        System.arraycopy(other.y, 0, y, 0, other.count);
+        System.arraycopy(other.animation, 0, animation, 0, other.count);
+        tick = other.tick;
+        count = other.count;
+    }
+
+    // Entities must be added in increasing ID order
+    void add(int entity, int seq, int x, int y, int animation) {
+        ensureCapacity(count + 1);
+        this.entity[count] = entity;
+        this.seq[count] = seq;
+        this.x[count] = x;
+        this.y[count] = y;
+        this.animation[count] = animation;
+        count++;
+    }
+
+    // Index of the entity, or a negative number if it is not in this snapshot
+    public int indexOf(int entityID) {
+        return Arrays.binarySearch(entity, 0, count, entityID);
+    }
+
+    public int getEntity(int i) { return entity[i]; }
+    public int getSeq(int i) { return seq[i]; }
+    public int getX(int i) { return x[i]; }
+    public int getY(int i) { return y[i]; }
+    public int getAnimation(int i) { return animation[i]; }
+
+    // Upper bound of the bytes writeDelta needs
+    int maxEncodedSize(Snapshot base) {
+        return maxEncodedSize(base, Protocol.MAX_FRAME_SIZE);
+    }
+
+    int maxEncodedSize(Snapshot base, int maxFrameSize) {
+        int entries = count + (base == null ? 0 : base.count);
+        int frames = 1 + entries * Protocol.MAX_SNAPSHOT_ENTRY_SIZE / (maxFrameSize - Protocol.SNAPSHOT_HEADER_SIZE - Protocol.MAX_SNAPSHOT_ENTRY_SIZE);
+        return entries * Protocol.MAX_SNAPSHOT_ENTRY_SIZE + frames * Protocol.SNAPSHOT_HEADER_SIZE;
+    }
+
+    void writeDelta(ByteBuffer out, Snapshot base) {
+        writeDelta(out, base, Protocol.MAX_FRAME_SIZE);
+    }
+
+    // Appends the SNAPSHOT frames that turn base into this snapshot, or all of it when base is null,
+    // none larger than maxFrameSize. Unchanged entities are left out and only the fields that differ are written.
+    void writeDelta(ByteBuffer out, Snapshot base, int maxFrameSize) {
+        int baseTick = base == null ? Protocol.NO_BASELINE : base.tick;
+        int baseCount = base == null ? 0 : base.count;
+        int frame = Protocol.beginSnapshot(out, tick, baseTick);
+        int entries = 0;
+        int i = 0, j = 0;
+        while (i < count || j < baseCount) {
+            if (out.position() - frame > maxFrameSize - Protocol.MAX_SNAPSHOT_ENTRY_SIZE) {
+                Protocol.endSnapshot(out, frame, entries);
+                frame = Protocol.beginSnapshot(out, tick, baseTick);
+                entries = 0;
+            }
+            int current = i < count ? entity[i] : Integer.MAX_VALUE;
+            int previous = j < baseCount ? base.entity[j] : Integer.MAX_VALUE;
+            if (current < previous) {
+                Protocol.writeSnapshotEntry(out, current, Protocol.ALL_FIELDS, seq[i], x[i], y[i], animation[i]);
+                entries++;
+                i++;
+            } else if (current > previous) {
+                Protocol.writeSnapshotEntry(out, previous, Protocol.REMOVED, 0, 0, 0, 0);
+                entries++;
+                j++;
+            } else {
+                int fields = 0;
+                if (seq[i] != base.seq[j]) fields |= Protocol.FIELD_SEQ;
+                if (x[i] != base.x[j]) fields |= Protocol.FIELD_X;
+                if (y[i] != base.y[j]) fields |= Protocol.FIELD_Y;
+                if (animation[i] != base.animation[j]) fields |= Protocol.FIELD_ANIMATION;
+                if (fields != 0) {
+                    Protocol.writeSnapshotEntry(out, current, fields, seq[i], x[i], y[i], animation[i]);
+                    entries++;
+                }
+                i++;
+                j++;
+            }
+        }
+        Protocol.endSnapshot(out, frame, entries);
+    }
+
+    // Applies the entries of one SNAPSHOT frame on top of this snapshot's current contents
+    void applyFrame(ByteBuffer in, int frame) {
+        int entries = Protocol.snapshotCount(in, frame);
+        ensureCapacity(count + entries);
+        int n = 0, i = 0;
+        int entry = Protocol.firstSnapshotEntry(frame);
+        for (int e = 0; e < entries; e++, entry += Protocol.entrySize(in, entry)) {
+            int id = Protocol.entryEntity(in, entry);
+            while (i < count && entity[i] < id) copyNext(i++, n++); // Unchanged
+            boolean known = i < count && entity[i] == id;
+            int fields = Protocol.entryFields(in, entry);
+            if ((fields & Protocol.REMOVED) != 0) {
+                if (known) i++;
+                continue;
+            }
+            if (known) {
+                copyNext(i++, n);
+            } else {
+                nextEntity[n] = id;
+                nextSeq[n] = nextX[n] = nextY[n] = nextAnimation[n] = 0;
+            }
+            if ((fields & Protocol.FIELD_SEQ) != 0) nextSeq[n] = Protocol.entryField(in, entry, Protocol.FIELD_SEQ);
+            if ((fields & Protocol.FIELD_X) != 0) nextX[n] = Protocol.entryField(in, entry, Protocol.FIELD_X);
+            if ((fields & Protocol.FIELD_Y) != 0) nextY[n] = Protocol.entryField(in, entry, Protocol.FIELD_Y);
+            if ((fields & Protocol.FIELD_ANIMATION) != 0) nextAnimation[n] = Protocol.entryField(in, entry, Protocol.FIELD_ANIMATION);
+            n++;
+        }
+        while (i < count) copyNext(i++, n++);
+
+        int[] swap;
+        swap = entity; entity = nextEntity; nextEntity = swap;
+        swap = seq; seq = nextSeq; nextSeq = swap;
+        swap = x; x = nextX; nextX = swap;
+        swap = y; y = nextY; nextY = swap;
+        swap = animation; animation = nextAnimation; nextAnimation = swap;
+        count = n;
+    }
+
+    private void copyNext(int from, int to) {
+        nextEntity[to] = entity[from];
+        nextSeq[to] = seq[from];
+        nextX[to] = x[from];
+        nextY[to] = y[from];
+        nextAnimation[to] = animation[from];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= entity.length) return;
+        int newCapacity = Math.max(capacity, entity.length * 2);
+        entity = Arrays.copyOf(entity, newCapacity);
+        seq = Arrays.copyOf(seq, newCapacity);
+        x = Arrays.copyOf(x, newCapacity);
+        y = Arrays.copyOf(y, newCapacity);
+        animation = Arrays.copyOf(animation, newCapacity);
+        nextEntity = new int[newCapacity];
+        nextSeq = new int[newCapacity];
+        nextX = new int[newCapacity];
+        nextY = new int[newCapacity];
+        nextAnimation = new int[newCapacity];
+    }
+}
@@ -0,0 +1,33 @@
+// The last Value.SnapshotHistory snapshots, looked up by tick.
+// Slots are reused, so a snapshot is only valid until its tick falls out of the ring.
+public class SnapshotRing {
+
+    private final Snapshot[] slots;
+
+    public SnapshotRing(int size) {
+        slots = new Snapshot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Snapshot();
+        }
+    }
+
+    public int capacity() { return slots.length; }
+
+    // The snapshot of this tick, or null if it was never stored or has been overwritten
+    public Snapshot get(int tick) {
+        Snapshot snapshot = slots[Math.floorMod(tick, slots.length)];
+        return snapshot.tick == tick ? snapshot : null;
+    }
+
+    // Empties the slot of this tick and returns it for filling
+    public Snapshot claim(int tick) {
+        Snapshot snapshot = slots[Math.floorMod(tick, slots.length)];
+        snapshot.reset(tick);
+        return snapshot;
+    }
+
+    // Can a snapshot for tick be built on top of the one for baseTick without overwriting it?
+    public boolean canDeltaFrom(int baseTick, int tick) {
+        return baseTick < tick && tick - baseTick < slots.length;
+    }
+}
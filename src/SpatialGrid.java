@@ -0,0 +1,181 @@
+import java.util.Arrays;
+
+// Uniform-grid spatial hash for entities, one cell per Value.TileSize pixels by default.
+// Entities are identified by small non-negative int IDs and stored as boxes in world pixels.
+// Each entity lives in the cell of its top-left corner, linked into that cell's hash bucket
+// through int arrays, so insert, move, remove and queries never allocate (arrays only grow
+// when IDs or the entity count pass their current capacity). Query cost depends on how many
+// entities are near the query, not on how many exist in total.
+public class SpatialGrid {
+
+    private static final int EMPTY = -1;
+
+    private final int cellSize;
+
+    // Per entity, indexed by ID
+    private int[] left = new int[0], top = new int[0], width = new int[0], height = new int[0];
+    private int[] cellX = new int[0], cellY = new int[0];
+    private int[] next = new int[0], prev = new int[0];
+    private boolean[] present = new boolean[0];
+
+    private int[] buckets;
+    private int bucketMask;
+    private int count;
+    private int maxWidth, maxHeight; // Largest entity seen, queries reach back this far
+
+    public SpatialGrid() {
+        this(Value.TileSize);
+    }
+
+    public SpatialGrid(int cellSize) {
+        this.cellSize = cellSize;
+        this.buckets = new int[64];
+        Arrays.fill(buckets, EMPTY);
+        this.bucketMask = buckets.length - 1;
+    }
+
+    public int size() { return count; }
+
+    public boolean contains(int id) {
+        return id >= 0 && id < present.length && present[id];
+    }
+
+    public void insert(int id, int x, int y, int w, int h) {
+        ensureCapacity(id + 1);
+        width[id] = w;
+        height[id] = h;
+        maxWidth = Math.max(maxWidth, w);
+        maxHeight = Math.max(maxHeight, h);
+        if (present[id]) {
+            move(id, x, y);
+            return;
+        }
+        left[id] = x;
+        top[id] = y;
+        present[id] = true;
+        count++;
+        link(id, Math.floorDiv(x, cellSize), Math.floorDiv(y, cellSize));
+        if (count > buckets.length) {
+            rehash(buckets.length * 2);
+        }
+    }
+
+    public void move(int id, int x, int y) {
+        if (!contains(id)) return;
+        left[id] = x;
+        top[id] = y;
+        int cx = Math.floorDiv(x, cellSize);
+        int cy = Math.floorDiv(y, cellSize);
+        if (cx != cellX[id] || cy != cellY[id]) {
+            unlink(id);
+            link(id, cx, cy);
+        }
+    }
+
+    public void remove(int id) {
+        if (!contains(id)) return;
+        unlink(id);
+        present[id] = false;
+        count--;
+    }
+
+    public int getX(int id) { return left[id]; }
+    public int getY(int id) { return top[id]; }
+
+    // Writes the IDs of entities overlapping [qLeft, qRight) x [qTop, qBottom) into out.
+    // Returns how many were written, at most out.length.
+    public int queryAabb(int qLeft, int qTop, int qRight, int qBottom, int[] out) {
+        int found = 0;
+        int cx0 = Math.floorDiv(qLeft - maxWidth, cellSize);
+        int cy0 = Math.floorDiv(qTop - maxHeight, cellSize);
+        int cx1 = Math.floorDiv(qRight - 1, cellSize);
+        int cy1 = Math.floorDiv(qBottom - 1, cellSize);
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                for (int id = buckets[hash(cx, cy)]; id != EMPTY; id = next[id]) {
+                    if (cellX[id] != cx || cellY[id] != cy) continue; // Another cell in the same bucket
+                    if (left[id] < qRight && left[id] + width[id] > qLeft
+                            && top[id] < qBottom && top[id] + height[id] > qTop) {
+                        if (found == out.length) return found;
+                        out[found++] = id;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // Writes the IDs of entities whose box is within radius of (centerX, centerY) into out.
+    // Returns how many were written, at most out.length.
+    public int queryRadius(int centerX, int centerY, int radius, int[] out) {
+        int found = 0;
+        long radiusSq = (long) radius * radius;
+        int cx0 = Math.floorDiv(centerX - radius - maxWidth, cellSize);
+        int cy0 = Math.floorDiv(centerY - radius - maxHeight, cellSize);
+        int cx1 = Math.floorDiv(centerX + radius, cellSize);
+        int cy1 = Math.floorDiv(centerY + radius, cellSize);
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                for (int id = buckets[hash(cx, cy)]; id != EMPTY; id = next[id]) {
+                    if (cellX[id] != cx || cellY[id] != cy) continue;
+                    // Distance from the center to the closest point of the box
+                    long dx = centerX - Math.max(left[id], Math.min(centerX, left[id] + width[id]));
+                    long dy = centerY - Math.max(top[id], Math.min(centerY, top[id] + height[id]));
+                    if (dx * dx + dy * dy <= radiusSq) {
+                        if (found == out.length) return found;
+                        out[found++] = id;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private int hash(int cx, int cy) {
+        int h = cx * 0x9E3779B1 ^ cy * 0x85EBCA77;
+        return (h ^ (h >>> 15)) & bucketMask;
+    }
+
+    private void link(int id, int cx, int cy) {
+        cellX[id] = cx;
+        cellY[id] = cy;
+        int bucket = hash(cx, cy);
+        int head = buckets[bucket];
+        next[id] = head;
+        prev[id] = EMPTY;
+        if (head != EMPTY) prev[head] = id;
+        buckets[bucket] = id;
+    }
+
+    private void unlink(int id) {
+        if (prev[id] != EMPTY) {
+            next[prev[id]] = next[id];
+        } else {
+            buckets[hash(cellX[id], cellY[id])] = next[id];
+        }
+        if (next[id] != EMPTY) prev[next[id]] = prev[id];
+    }
+
+    private void rehash(int bucketCount) {
+        buckets = new int[bucketCount];
+        Arrays.fill(buckets, EMPTY);
+        bucketMask = bucketCount - 1;
+        for (int id = 0; id < present.length; id++) {
+            if (present[id]) link(id, cellX[id], cellY[id]);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= present.length) return;
+        int newCapacity = Math.max(capacity, Math.max(16, present.length * 2));
+        left = Arrays.copyOf(left, newCapacity);
+        top = Arrays.copyOf(top, newCapacity);
+        width = Arrays.copyOf(width, newCapacity);
+        height = Arrays.copyOf(height, newCapacity);
+        cellX = Arrays.copyOf(cellX, newCapacity);
+        cellY = Arrays.copyOf(cellY, newCapacity);
+        next = Arrays.copyOf(next, newCapacity);
+        prev = Arrays.copyOf(prev, newCapacity);
+        present = Arrays.copyOf(present, newCapacity);
+    }
+}
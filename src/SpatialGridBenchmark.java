@@ -0,0 +1,60 @@
+import java.util.Random;
+
+// Measures SpatialGrid costs at a constant entity density while the entity count grows.
+// Run: java SpatialGridBenchmark [queries per size]
+public class SpatialGridBenchmark {
+
+    private static final int[] ENTITY_COUNTS = {100, 1_000, 10_000, 50_000, 100_000};
+    private static final int ENTITIES_PER_SCREEN = 40; // Density, entities per 16x12 tile screen
+    private static final int QUERY_RADIUS = 5 * Value.TileSize;
+
+    public static void main(String[] args) {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int screenArea = Value.NumTilex * Value.NumTiley * Value.TileSize * Value.TileSize;
+
+        System.out.printf("%10s %14s %14s %14s %10s%n", "entities", "move ns", "radius ns", "aabb ns", "avg hits");
+        for (int round = 0; round < 2; round++) { // First round warms up the JIT
+            for (int entities : ENTITY_COUNTS) {
+                int worldSize = (int) Math.sqrt((double) entities * screenArea / ENTITIES_PER_SCREEN);
+                Random random = new Random(42);
+                SpatialGrid grid = new SpatialGrid();
+                for (int id = 0; id < entities; id++) {
+                    grid.insert(id, random.nextInt(worldSize), random.nextInt(worldSize), Value.TileSize, Value.TileSize);
+                }
+
+                int[] out = new int[1024];
+                long start = System.nanoTime();
+                for (int i = 0; i < queries; i++) {
+                    int id = random.nextInt(entities);
+                    int x = Math.floorMod(grid.getX(id) + random.nextInt(27) - 13, worldSize);
+                    int y = Math.floorMod(grid.getY(id) + random.nextInt(27) - 13, worldSize);
+                    grid.move(id, x, y);
+                }
+                long moveNanos = System.nanoTime() - start;
+
+                long hits = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < queries; i++) {
+                    hits += grid.queryRadius(random.nextInt(worldSize), random.nextInt(worldSize), QUERY_RADIUS, out);
+                }
+                long radiusNanos = System.nanoTime() - start;
+
+                int screenWidth = Value.NumTilex * Value.TileSize;
+                int screenHeight = Value.NumTiley * Value.TileSize;
+                start = System.nanoTime();
+                for (int i = 0; i < queries; i++) {
+                    int x = random.nextInt(worldSize);
+                    int y = random.nextInt(worldSize);
+                    grid.queryAabb(x, y, x + screenWidth, y + screenHeight, out);
+                }
+                long aabbNanos = System.nanoTime() - start;
+
+                if (round == 1) {
+                    System.out.printf("%10d %14.1f %14.1f %14.1f %10.1f%n", entities,
+                            (double) moveNanos / queries, (double) radiusNanos / queries,
+                            (double) aabbNanos / queries, (double) hits / queries);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+// A pre-scaled image stored in one page of a SpriteAtlas
+public class Sprite {
+
+    final BufferedImage page;
+    final int x, y; // Top-left corner inside the page
+    final int width, height;
+
+    Sprite(BufferedImage page, int x, int y, int width, int height) {
+        this.page = page;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    // Unscaled copy from the atlas page, the fast path for Java2D
+    public void draw(Graphics g, int dx, int dy) {
+        g.drawImage(page, dx, dy, dx + width, dy + height, x, y, x + width, y + height, null);
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+}
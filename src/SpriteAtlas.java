@@ -0,0 +1,67 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+// Packs tiles, fences and player frames into a few large screen-compatible images.
+// Every image is scaled to cellSize x cellSize once when it is added, so drawing a
+// sprite is always an unscaled blit from an image Java2D can keep in video memory.
+public class SpriteAtlas {
+
+    private final int cellSize;
+    private final int pageSize;
+    private final int cellsPerRow;
+    private final List<BufferedImage> pages = new ArrayList<>();
+    private int nextCell; // Next free cell in the last page
+
+    public SpriteAtlas(int cellSize) {
+        this.cellSize = cellSize;
+        this.pageSize = Math.max(cellSize, Value.AtlasPageSize);
+        this.cellsPerRow = pageSize / cellSize;
+    }
+
+    // Adds an image scaled with nearest neighbour, which keeps pixel art sharp
+    public Sprite add(BufferedImage image) {
+        return add(image, false);
+    }
+
+    public synchronized Sprite add(BufferedImage image, boolean smooth) {
+        if (pages.isEmpty() || nextCell == cellsPerRow * cellsPerRow) {
+            pages.add(createCompatibleImage(pageSize, pageSize));
+            nextCell = 0;
+        }
+        BufferedImage page = pages.get(pages.size() - 1);
+        int x = (nextCell % cellsPerRow) * cellSize;
+        int y = (nextCell / cellsPerRow) * cellSize;
+        nextCell++;
+
+        Graphics2D g2d = page.createGraphics();
+        if (smooth) {
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        g2d.drawImage(image, x, y, cellSize, cellSize, null);
+        g2d.dispose();
+        return new Sprite(page, x, y, cellSize, cellSize);
+    }
+
+    public Sprite[] addAll(BufferedImage[] images, boolean smooth) {
+        Sprite[] sprites = new Sprite[images.length];
+        for (int i = 0; i < images.length; i++) {
+            sprites[i] = images[i] == null ? null : add(images[i], smooth); // Missing images stay missing
+        }
+        return sprites;
+    }
+
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    // Creates a translucent image in the screen's pixel format, or a plain ARGB image when headless
+    public static BufferedImage createCompatibleImage(int width, int height) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDefaultConfiguration().createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+}
@@ -0,0 +1,126 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Sprites the AssetLoader has already decoded and scaled, kept on disk as raw ARGB pixels so later
+// launches skip PNG decoding and scaling. Each file is named by a SHA-256 of the PNG's bytes, the
+// tile size and the scaling, so changing any of them just misses the cache. A file is
+// memory-mapped and its pixels copied straight into the image's int raster.
+// Safe to use from several threads; a sprite that cannot be cached is only loaded the slow way.
+public class SpriteCache {
+
+    private static final int MAGIC = 0x42475241; // "ARGB" as little-endian bytes
+    private static final int VERSION = 1; // Part of every key, bump to drop all cached sprites
+    private static final int HEADER_SIZE = 12; // i32 magic, i32 width, i32 height, then width * height ARGB ints
+    private static final String EXTENSION = ".argb";
+
+    private final Path directory; // Null if it could not be created
+    private final Set<String> used = ConcurrentHashMap.newKeySet(); // Keys asked for since this cache was opened
+
+    public SpriteCache(String directory) {
+        Path path = Paths.get(directory);
+        try {
+            Files.createDirectories(path);
+        } catch (IOException e) {
+            System.err.println("Sprite cache disabled, cannot create " + directory);
+            path = null;
+        }
+        this.directory = path;
+    }
+
+    // Names the sprite scaled from this PNG to the current tile size
+    public String key(byte[] source, boolean smooth) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source);
+            digest.update(ByteBuffer.allocate(9).putInt(VERSION).putInt(Value.TileSize).put((byte) (smooth ? 1 : 0)).array());
+            String key = HexFormat.of().formatHex(digest.digest());
+            used.add(key);
+            return key;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has SHA-256
+        }
+    }
+
+    // The cached sprite, or null if there is none or it does not match the tile size
+    public BufferedImage read(String key) {
+        if (directory == null) return null;
+        Path file = directory.resolve(key + EXTENSION);
+        if (!Files.isRegularFile(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) return null;
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            int width = mapped.getInt(4), height = mapped.getInt(8);
+            if (mapped.getInt(0) != MAGIC || width != Value.TileSize || height != Value.TileSize
+                    || size != HEADER_SIZE + 4L * width * height) {
+                return null;
+            }
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            mapped.position(HEADER_SIZE);
+            mapped.asIntBuffer().get(pixels);
+            return image;
+        } catch (IOException e) {
+            System.err.println("Failed to read cached sprite " + file);
+            return null;
+        }
+    }
+
+    // Saves a TYPE_INT_ARGB sprite under key. It goes to a temporary file that is then renamed, so
+    // another launch never maps half a sprite.
+    public void write(String key, BufferedImage image) {
+        if (directory == null || image.getType() != BufferedImage.TYPE_INT_ARGB) return;
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + pixels.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(image.getWidth()).putInt(image.getHeight());
+        buffer.asIntBuffer().put(pixels);
+        buffer.rewind(); // The view does not move the buffer's position
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(directory, key, ".tmp"); // Two equal PNGs may be written at once
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            Files.move(tmp, directory.resolve(key + EXTENSION), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to cache sprite " + key);
+            try {
+                if (tmp != null) Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Deletes cached sprites no key was asked for, left behind by changed PNGs or another tile size
+    public void prune() {
+        if (directory == null) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                boolean stale = name.endsWith(".tmp")
+                        || name.endsWith(EXTENSION) && !used.contains(name.substring(0, name.length() - EXTENSION.length()));
+                if (stale) Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to prune sprite cache " + directory);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.nio.ByteBuffer;
+
+// The server's recent tile edits to World's background layer, by chunk. The edit that took a
+// chunk to version v is kept until HISTORY newer ones replace it, so a client a few edits behind
+// is sent just those as TILE_EDITS and one further behind gets the whole chunk as CHUNK_DATA.
+// Tick thread only.
+public class TileEditLog {
+
+    private static final int HISTORY = 256; // Edits kept per chunk
+
+    private final World world;
+    private final int chunkSize;
+    private final int[][] edits; // By chunk index, then version % HISTORY: tile index << 16 | tileID. Allocated on first edit
+    // By chunk index, its version when edits was allocated, loaded from before a restart: there are
+    // no edits from that version or older
+    private final int[] firstVersions;
+    private final short[] chunkTiles; // Reused for CHUNK_DATA
+
+    public TileEditLog(World world) {
+        this.world = world;
+        ChunkManager background = world.getBackground();
+        this.chunkSize = background.getChunkSize();
+        this.edits = new int[background.getChunksX() * background.getChunksY()][];
+        this.firstVersions = new int[edits.length];
+        this.chunkTiles = new short[chunkSize * chunkSize];
+    }
+
+    public boolean isOnMap(int tileX, int tileY) {
+        ChunkManager background = world.getBackground();
+        return tileX >= 0 && tileX < background.getWidth() && tileY >= 0 && tileY < background.getHeight();
+    }
+
+    // Whether a background tile ID has an image: a tilesheet or an animated tile
+    public static boolean isValidTile(int tileID) {
+        if (tileID >= 0 && tileID < Value.tilesheetPaths.length) return true;
+        for (int id : Value.anitile) {
+            if (id == tileID) return true;
+        }
+        return false;
+    }
+
+    // Applies one edit of a tile on the map to the world; returns its chunk's new version
+    public int apply(int tileX, int tileY, int tileID) {
+        int chunkX = tileX / chunkSize, chunkY = tileY / chunkSize;
+        int chunk = world.chunkIndex(chunkX, chunkY);
+        int version = world.getChunkVersion(chunkX, chunkY) + 1;
+        if (edits[chunk] == null) {
+            edits[chunk] = new int[HISTORY];
+            firstVersions[chunk] = version - 1;
+        }
+        edits[chunk][version % HISTORY] = (tileY % chunkSize * chunkSize + tileX % chunkSize) << 16 | tileID;
+        world.setBackgroundTile(tileX, tileY, tileID);
+        world.setChunkVersion(chunkX, chunkY, version);
+        return version;
+    }
+
+    // Writes one frame with what a client holding version of a chunk is missing: TILE_EDITS if all of
+    // those edits are kept, otherwise CHUNK_DATA, which a negative version always gets. Returns false
+    // and writes nothing if the client is already up to date.
+    public boolean writeSince(ByteBuffer out, int chunkX, int chunkY, int version) {
+        int current = world.getChunkVersion(chunkX, chunkY);
+        if (version == current) return false;
+        int chunk = world.chunkIndex(chunkX, chunkY);
+        int[] chunkEdits = edits[chunk];
+        if (chunkEdits != null && version >= firstVersions[chunk] && version < current && current - version <= HISTORY) {
+            int frame = Protocol.beginTileEdits(out, chunkX, chunkY, version);
+            for (int v = version + 1; v <= current; v++) {
+                int edit = chunkEdits[v % HISTORY];
+                Protocol.writeTileEdit(out, edit >>> 16, edit & 0xFFFF);
+            }
+            Protocol.endTileEdits(out, frame, current - version);
+        } else {
+            // Also when the client has a version we never reached, or one from before a server restart
+            world.getBackground().copyChunk(chunkX, chunkY, chunkTiles);
+            Protocol.writeChunkData(out, chunkX, chunkY, current, chunkTiles);
+        }
+        return true;
+    }
+
+    // Largest frame writeSince writes
+    public int maxFrameSize() {
+        return Math.max(Protocol.TILE_EDITS_HEADER_SIZE + HISTORY * Protocol.TILE_EDIT_SIZE,
+                Protocol.CHUNK_DATA_HEADER_SIZE + chunkTiles.length * 2);
+    }
+}
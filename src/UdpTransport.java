@@ -0,0 +1,573 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Protocol frames over UDP, so one lost packet does not hold back everything sent after it.
+// Each send() is a buffer of whole frames on one of two channels:
+// - unreliable sequenced, for state the next update replaces (snapshots, inputs, acks). It may
+//   be lost, and is dropped when it arrives after a newer one;
+// - reliable ordered, for events (joins, leaves, tile changes). Resent until acknowledged and
+//   delivered exactly once, in the order sent.
+// No datagram is larger than Value.UdpPacketSize, so none is fragmented by IP, where losing one
+// fragment loses the whole datagram. A larger unreliable buffer is split between frames into a
+// group of up to MAX_PARTS consecutive datagrams, delivered only once every part has arrived,
+// so a snapshot is never applied half way; its frames must each fit one part, see
+// maxUnreliableFrameSize. A larger reliable message is cut into pieces sent as consecutive
+// reliable messages and joined again before delivery.
+// Every datagram acknowledges the newest packet received from the peer and, in a bitfield, the
+// 32 before it, so acks ride along with normal traffic. Datagram layout, big-endian:
+//   u16 magic, u16 sequence, u16 ack, u32 ackBits, u8 flags, u8 reliableCount,
+//   reliableCount x (u16 messageID, u16 pieceFlags | length, frames or a piece of them),
+//   then, with FLAG_PART, u8 partIndex and u8 partCount, then the unreliable frames.
+// One thread owns the channel and every connection's state; other threads only queue buffers.
+public class UdpTransport {
+
+    // Callbacks, all on the transport thread. A frame is only valid during onFrame.
+    public interface Listener {
+        void onConnect(Connection connection); // First datagram from a new address, server side
+        void onFrame(Connection connection, ByteBuffer in, int frame);
+        void onDisconnect(Connection connection); // Nothing heard for Value.UdpTimeoutMs
+    }
+
+    private static final int MAGIC = 0x5247;
+    private static final int HEADER_SIZE = 12;
+    private static final int MESSAGE_HEADER_SIZE = 4;
+    private static final int PART_HEADER_SIZE = 2;
+    private static final int FLAG_HAS_ACK = 1; // Unset until the sender has received anything
+    private static final int FLAG_PART = 2; // The unreliable frames are one part of a group
+    private static final int PIECE_MORE = 0x8000; // A reliable piece that more pieces follow
+    private static final int PIECE_CONTINUED = 0x4000; // A reliable piece that continues the one before
+    private static final int LENGTH_MASK = 0x3FFF;
+    private static final int MAX_PARTS = 255; // Datagrams one buffer may be split into, on either channel
+    private static final int MAX_DATAGRAM_SIZE = 65507; // Largest UDP payload over IPv4, accepted from peers
+    private static final int WINDOW = 1024; // Sent packets and reliable messages tracked per connection
+    private static final int MASK = WINDOW - 1;
+    private static final int MAX_MESSAGES_PER_PACKET = 32;
+    private static final long TIMER_NANOS = 10_000_000L; // How often resends, acks and timeouts are checked
+    private static final long ACK_DELAY_NANOS = 10_000_000L; // Longest an ack waits for traffic to ride on
+    private static final long KEEPALIVE_NANOS = 100_000_000L;
+    private static final long MIN_RESEND_NANOS = 20_000_000L;
+
+    public static final class Connection {
+        private final SocketAddress address;
+        private volatile Object attachment;
+        private volatile boolean closed;
+        private final Queue<ByteBuffer> unreliableQueue = new ConcurrentLinkedQueue<>();
+        private final Queue<ByteBuffer> reliableQueue = new ConcurrentLinkedQueue<>();
+
+        // Outgoing, transport thread only
+        private int nextSequence; // Of the next packet
+        private final int[] sentSequence = new int[WINDOW]; // By sequence & MASK, MIN_VALUE once acked
+        private final long[] sentTime = new long[WINDOW];
+        private final int[][] sentMessages = new int[WINDOW][MAX_MESSAGES_PER_PACKET]; // Reliable message IDs in each packet
+        private final int[] sentMessageCount = new int[WINDOW];
+        private final ByteBuffer[] outMessages = new ByteBuffer[WINDOW]; // Unacknowledged, by message ID & MASK
+        private final int[] outPieceFlags = new int[WINDOW];
+        private final long[] outNextSend = new long[WINDOW];
+        private int oldestUnacked, nextMessageId;
+        private long lastSent;
+        private volatile long rttNanos = 100_000_000L;
+
+        // Incoming, transport thread only
+        private boolean received;
+        private int remoteSequence; // Newest packet received
+        private int ackBits; // Bit i set when remoteSequence - 1 - i was received
+        private boolean ackPending;
+        private final ByteBuffer[] inMessages = new ByteBuffer[WINDOW]; // Arrived ahead of nextDelivery
+        private final int[] inPieceFlags = new int[WINDOW];
+        private int nextDelivery;
+        private ByteBuffer pieces; // Reliable message being joined from its pieces
+        private boolean unreliableDelivered;
+        private int lastUnreliable; // Sequence of the newest datagram whose unreliable frames were delivered
+        private int groupStart; // Sequence of part 0 of the group being collected
+        private int groupCount, groupReceived; // groupCount 0 when no group is being collected
+        private final ByteBuffer[] groupParts = new ByteBuffer[MAX_PARTS];
+        private long lastReceived;
+
+        Connection(SocketAddress address, long now) {
+            this.address = address;
+            this.lastReceived = now;
+            this.lastSent = now;
+            Arrays.fill(sentSequence, Integer.MIN_VALUE);
+        }
+
+        public SocketAddress getAddress() { return address; }
+        public Object getAttachment() { return attachment; }
+        public void setAttachment(Object attachment) { this.attachment = attachment; }
+        public boolean isClosed() { return closed; }
+        public long getRttNanos() { return rttNanos; }
+    }
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Listener listener;
+    private final boolean accepting; // Datagrams from new addresses open connections
+    private final Map<SocketAddress, Connection> connections = new ConcurrentHashMap<>();
+    private final Queue<Connection> pendingCloses = new ConcurrentLinkedQueue<>();
+    private Connection server; // Client side only
+    private final NetworkSimulator simulator = NetworkSimulator.isEnabled() ? new NetworkSimulator() : null;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(Value.UdpPacketSize);
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private UdpTransport(DatagramChannel channel, Listener listener, boolean accepting, String threadName) throws IOException {
+        this.channel = channel;
+        this.listener = listener;
+        this.accepting = accepting;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 1024 * 1024);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 1024 * 1024);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+    }
+
+    // Listens on a port and opens a connection for every address that sends a valid datagram
+    public static UdpTransport server(int port, Listener listener) throws IOException {
+        DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress(port));
+        UdpTransport transport = new UdpTransport(channel, listener, true, "server-udp");
+        transport.thread.start();
+        return transport;
+    }
+
+    // Talks to one server from an ephemeral port; the connection is getServer()
+    public static UdpTransport client(SocketAddress server, Listener listener) throws IOException {
+        DatagramChannel channel = DatagramChannel.open().bind(null);
+        UdpTransport transport = new UdpTransport(channel, listener, false, "client-udp");
+        transport.server = new Connection(server, System.nanoTime());
+        transport.connections.put(server, transport.server);
+        transport.thread.start();
+        return transport;
+    }
+
+    // The only connection of a client transport
+    public Connection getServer() { return server; }
+
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    // Largest frame an unreliable buffer may hold; each must fit one datagram of a group
+    public static int maxUnreliableFrameSize() {
+        return Value.UdpPacketSize - HEADER_SIZE - PART_HEADER_SIZE;
+    }
+
+    // Queues a buffer of whole frames for the peer. It is read later on the transport thread,
+    // so it must not be modified afterwards.
+    public void send(Connection connection, ByteBuffer frames, boolean reliable) {
+        if (connection.closed) return;
+        if (frames.remaining() > MAX_PARTS * (Value.UdpPacketSize - HEADER_SIZE - MESSAGE_HEADER_SIZE)) {
+            System.err.println("Dropping " + frames.remaining() + " bytes, too large to send over UDP");
+            return;
+        }
+        if (!reliable) {
+            for (int frame = frames.position(); frame < frames.limit(); frame += Protocol.frameSize(frames, frame)) {
+                if (Protocol.frameSize(frames, frame) > maxUnreliableFrameSize()) {
+                    System.err.println("Dropping a frame of " + Protocol.frameSize(frames, frame) + " bytes, too large for one datagram");
+                    return;
+                }
+            }
+        }
+        (reliable ? connection.reliableQueue : connection.unreliableQueue).add(frames);
+        if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    // Forgets a connection without calling onDisconnect; whatever is still queued is dropped
+    public void disconnect(Connection connection) {
+        connection.closed = true;
+        pendingCloses.add(connection);
+        selector.wakeup();
+    }
+
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void run() {
+        long nextTimer = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            long timeout = Math.max(0, nextTimer - now);
+            if (simulator != null && simulator.nextDue(now) >= 0) timeout = Math.min(timeout, simulator.nextDue(now));
+            try {
+                if (timeout >= 1_000_000L) {
+                    selector.select(timeout / 1_000_000L);
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            selector.selectedKeys().clear();
+            wakeupPending.set(false);
+
+            now = System.nanoTime();
+            receiveAll(now);
+            Connection closing;
+            while ((closing = pendingCloses.poll()) != null) {
+                connections.remove(closing.address, closing);
+            }
+
+            boolean timer = now - nextTimer >= 0;
+            if (timer) nextTimer = now + TIMER_NANOS;
+            for (Connection connection : connections.values()) {
+                if (timer && now - connection.lastReceived > Value.UdpTimeoutMs * 1_000_000L) {
+                    connection.closed = true;
+                    connections.remove(connection.address, connection);
+                    listener.onDisconnect(connection);
+                    continue;
+                }
+                flush(connection, now);
+            }
+            if (simulator != null) simulator.flush(channel, now);
+        }
+
+        for (Connection connection : connections.values()) {
+            connection.closed = true;
+        }
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void receiveAll(long now) {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(receiveBuffer);
+            } catch (IOException e) {
+                if (running) e.printStackTrace();
+                return;
+            }
+            if (from == null) return;
+            receiveBuffer.flip();
+            if (!isWellFormed(receiveBuffer)) continue; // Stray or corrupted, not worth a disconnect
+
+            Connection connection = connections.get(from);
+            if (connection == null) {
+                if (!accepting) continue;
+                connection = new Connection(from, now);
+                connections.put(from, connection);
+                listener.onConnect(connection);
+            }
+            if (!connection.closed) receive(connection, receiveBuffer, now);
+        }
+    }
+
+    private void receive(Connection c, ByteBuffer in, long now) {
+        int wireSequence = in.getShort(2) & 0xFFFF;
+        int sequence;
+        if (!c.received) {
+            c.received = true;
+            c.remoteSequence = sequence = wireSequence;
+        } else {
+            sequence = c.remoteSequence + (short) (wireSequence - c.remoteSequence);
+            int age = c.remoteSequence - sequence;
+            if (age < 0) {
+                c.ackBits = -age > 32 ? 0 : (int) (((c.ackBits & 0xFFFFFFFFL) << -age) | (1L << (-age - 1)));
+                c.remoteSequence = sequence;
+            } else if (age == 0 || age > 32 || (c.ackBits & (1 << (age - 1))) != 0) {
+                return; // Duplicate, or too old to acknowledge; reliable messages in it will be resent
+            } else {
+                c.ackBits |= 1 << (age - 1);
+            }
+        }
+        c.lastReceived = now;
+        c.ackPending = true;
+        if ((in.get(10) & FLAG_HAS_ACK) != 0) processAcks(c, in.getShort(4) & 0xFFFF, in.getInt(6), now);
+
+        int position = HEADER_SIZE;
+        int messages = in.get(11) & 0xFF;
+        for (int i = 0; i < messages && !c.closed; i++) {
+            int wireId = in.getShort(position) & 0xFFFF;
+            int pieceFlags = in.getShort(position + 2) & ~LENGTH_MASK & 0xFFFF;
+            int length = in.getShort(position + 2) & LENGTH_MASK;
+            int start = position + MESSAGE_HEADER_SIZE;
+            position = start + length;
+
+            int id = c.nextDelivery + (short) (wireId - c.nextDelivery);
+            int ahead = id - c.nextDelivery;
+            if (ahead < 0 || ahead >= WINDOW || c.inMessages[id & MASK] != null) continue; // Delivered already, or held
+            if (ahead > 0) {
+                c.inMessages[id & MASK] = ByteBuffer.allocate(length).put(0, in, start, length);
+                c.inPieceFlags[id & MASK] = pieceFlags;
+                continue;
+            }
+            deliverMessage(c, in, start, length, pieceFlags);
+            c.nextDelivery++;
+            ByteBuffer held;
+            while (!c.closed && (held = c.inMessages[c.nextDelivery & MASK]) != null) {
+                c.inMessages[c.nextDelivery & MASK] = null;
+                int heldFlags = c.inPieceFlags[c.nextDelivery & MASK];
+                c.nextDelivery++;
+                deliverMessage(c, held, 0, held.limit(), heldFlags);
+            }
+        }
+        if (c.closed) return;
+        if ((in.get(10) & FLAG_PART) != 0) {
+            receivePart(c, in, sequence, position);
+        } else if (position < in.limit() && (!c.unreliableDelivered || sequence - c.lastUnreliable > 0)) {
+            c.unreliableDelivered = true;
+            c.lastUnreliable = sequence;
+            deliver(c, in, position, in.limit());
+        }
+    }
+
+    // A whole reliable message, or one piece of it: pieces are joined in the order they are
+    // delivered and the message goes to the listener with its last piece
+    private void deliverMessage(Connection c, ByteBuffer in, int start, int length, int pieceFlags) {
+        if (pieceFlags == 0) {
+            deliver(c, in, start, start + length);
+            return;
+        }
+        if ((pieceFlags & PIECE_CONTINUED) == 0) {
+            c.pieces = ByteBuffer.allocate(length * 4);
+        } else if (c.pieces == null) {
+            return; // Cannot happen in order, the first piece always comes first
+        }
+        if (c.pieces.remaining() < length) {
+            c.pieces = ByteBuffer.allocate(Math.max(c.pieces.capacity() * 2, c.pieces.position() + length)).put(c.pieces.flip());
+        }
+        c.pieces.put(c.pieces.position(), in, start, length).position(c.pieces.position() + length);
+        if ((pieceFlags & PIECE_MORE) != 0) return;
+
+        ByteBuffer message = c.pieces.flip();
+        c.pieces = null;
+        if (!framesValid(message, 0, message.limit())) {
+            System.err.println("Dropping a malformed reliable message from " + c.address);
+            return;
+        }
+        deliver(c, message, 0, message.limit());
+    }
+
+    // One datagram of an unreliable group. The group is sequenced by its first part like a single
+    // datagram would be, and delivered once all parts are in, unless something newer was delivered.
+    private void receivePart(Connection c, ByteBuffer in, int sequence, int position) {
+        int index = in.get(position) & 0xFF;
+        int count = in.get(position + 1) & 0xFF;
+        int start = sequence - index;
+        if (c.unreliableDelivered && start - c.lastUnreliable <= 0) return; // Older than what was delivered
+        if (c.groupCount == 0 || start != c.groupStart) {
+            if (c.groupCount != 0 && start - c.groupStart < 0) return; // Older than the group being collected
+            Arrays.fill(c.groupParts, 0, c.groupCount, null);
+            c.groupStart = start;
+            c.groupCount = count;
+            c.groupReceived = 0;
+        }
+        if (count != c.groupCount || c.groupParts[index] != null) return;
+        int frames = position + PART_HEADER_SIZE;
+        c.groupParts[index] = ByteBuffer.allocate(in.limit() - frames).put(0, in, frames, in.limit() - frames);
+        if (++c.groupReceived < count) return;
+
+        c.unreliableDelivered = true;
+        c.lastUnreliable = start + count - 1;
+        for (int i = 0; i < count && !c.closed; i++) {
+            deliver(c, c.groupParts[i], 0, c.groupParts[i].limit());
+        }
+        Arrays.fill(c.groupParts, 0, count, null);
+        c.groupCount = 0;
+    }
+
+    // Packets the peer received free the reliable messages they carried
+    private void processAcks(Connection c, int wireAck, int bits, long now) {
+        int newestSent = c.nextSequence - 1;
+        int ack = newestSent + (short) (wireAck - newestSent);
+        for (int i = 0; i <= 32; i++) {
+            if (i > 0 && (bits & (1 << (i - 1))) == 0) continue;
+            int sequence = ack - i;
+            int slot = sequence & MASK;
+            if (c.sentSequence[slot] != sequence) continue; // Acked before, or no longer tracked
+            c.sentSequence[slot] = Integer.MIN_VALUE;
+            if (i == 0) c.rttNanos += (now - c.sentTime[slot] - c.rttNanos) / 8;
+            for (int m = 0; m < c.sentMessageCount[slot]; m++) {
+                int id = c.sentMessages[slot][m];
+                if (id - c.oldestUnacked >= 0 && id - c.nextMessageId < 0) c.outMessages[id & MASK] = null;
+            }
+        }
+        while (c.oldestUnacked != c.nextMessageId && c.outMessages[c.oldestUnacked & MASK] == null) {
+            c.oldestUnacked++;
+        }
+    }
+
+    private void deliver(Connection c, ByteBuffer in, int start, int end) {
+        for (int frame = start; frame < end && !c.closed; frame += Protocol.frameSize(in, frame)) {
+            listener.onFrame(c, in, frame);
+        }
+    }
+
+    // Sends what is queued and due for one connection, packing it into as few datagrams of at most
+    // Value.UdpPacketSize as it fits
+    private void flush(Connection c, long now) {
+        int pieceSize = Value.UdpPacketSize - HEADER_SIZE - MESSAGE_HEADER_SIZE;
+        ByteBuffer queued;
+        while ((queued = c.reliableQueue.peek()) != null) {
+            int pieces = Math.max(1, (queued.remaining() + pieceSize - 1) / pieceSize);
+            if (WINDOW - (c.nextMessageId - c.oldestUnacked) < pieces) break; // All pieces go into the window together
+            c.reliableQueue.poll();
+            for (int i = 0; i < pieces; i++) {
+                int start = queued.position() + i * pieceSize;
+                int index = c.nextMessageId & MASK;
+                c.outMessages[index] = queued.slice(start, Math.min(pieceSize, queued.limit() - start));
+                c.outPieceFlags[index] = pieces == 1 ? 0 : (i < pieces - 1 ? PIECE_MORE : 0) | (i > 0 ? PIECE_CONTINUED : 0);
+                c.outNextSend[index] = now;
+                c.nextMessageId++;
+            }
+        }
+
+        long resend = Math.max(MIN_RESEND_NANOS, c.rttNanos * 3 / 2);
+        boolean ackDue = c.ackPending && now - c.lastSent >= ACK_DELAY_NANOS;
+        boolean keepalive = now - c.lastSent >= KEEPALIVE_NANOS;
+        int nextReliable = c.oldestUnacked;
+        while (true) {
+            ByteBuffer out = sendBuffer;
+            out.clear().position(HEADER_SIZE);
+            int slot = c.nextSequence & MASK;
+            int messages = 0;
+            for (; nextReliable != c.nextMessageId && messages < MAX_MESSAGES_PER_PACKET; nextReliable++) {
+                int index = nextReliable & MASK;
+                ByteBuffer message = c.outMessages[index];
+                if (message == null || now - c.outNextSend[index] < 0) continue;
+                if (out.position() + MESSAGE_HEADER_SIZE + message.remaining() > Value.UdpPacketSize) break;
+                out.putShort((short) nextReliable).putShort((short) (c.outPieceFlags[index] | message.remaining())).put(message.duplicate());
+                c.sentMessages[slot][messages++] = nextReliable;
+                c.outNextSend[index] = now + resend;
+            }
+            ByteBuffer frames;
+            while ((frames = c.unreliableQueue.peek()) != null) {
+                if (out.position() + frames.remaining() > Value.UdpPacketSize) {
+                    if (out.position() > HEADER_SIZE) break; // Goes out after this datagram
+                    c.unreliableQueue.poll();
+                    sendGroup(c, frames, now);
+                    out.clear().position(HEADER_SIZE); // sendGroup used the same buffer
+                    ackDue = keepalive = false;
+                    continue;
+                }
+                out.put(frames.duplicate());
+                c.unreliableQueue.poll();
+            }
+
+            boolean empty = out.position() == HEADER_SIZE;
+            if (empty && !ackDue && !keepalive) return;
+            sendDatagram(c, out, messages, 0, now);
+            ackDue = keepalive = false;
+            if (empty) return;
+        }
+    }
+
+    // Splits unreliable frames too large for one datagram between frames into a group of datagrams
+    // with consecutive sequences, which is how the peer tells their group apart
+    private void sendGroup(Connection c, ByteBuffer frames, long now) {
+        int payload = Value.UdpPacketSize - HEADER_SIZE - PART_HEADER_SIZE;
+        int parts = 1, partSize = 0;
+        for (int frame = frames.position(); frame < frames.limit(); frame += Protocol.frameSize(frames, frame)) {
+            int size = Protocol.frameSize(frames, frame);
+            if (partSize + size > payload) {
+                parts++;
+                partSize = 0;
+            }
+            partSize += size;
+        }
+        if (parts > MAX_PARTS) {
+            System.err.println("Dropping " + frames.remaining() + " bytes, more than " + MAX_PARTS + " datagrams");
+            return;
+        }
+
+        int frame = frames.position();
+        for (int part = 0; part < parts; part++) {
+            ByteBuffer out = sendBuffer;
+            out.clear().position(HEADER_SIZE);
+            out.put((byte) part).put((byte) parts);
+            while (frame < frames.limit() && out.position() + Protocol.frameSize(frames, frame) <= Value.UdpPacketSize) {
+                int size = Protocol.frameSize(frames, frame);
+                out.put(out.position(), frames, frame, size).position(out.position() + size);
+                frame += size;
+            }
+            sendDatagram(c, out, 0, FLAG_PART, now);
+        }
+    }
+
+    // Fills in the header of the datagram in out, whose body ends at its position, and sends it
+    private void sendDatagram(Connection c, ByteBuffer out, int messages, int flags, long now) {
+        int slot = c.nextSequence & MASK;
+        out.putShort(0, (short) MAGIC)
+                .putShort(2, (short) c.nextSequence)
+                .putShort(4, (short) c.remoteSequence)
+                .putInt(6, c.ackBits)
+                .put(10, (byte) (flags | (c.received ? FLAG_HAS_ACK : 0)))
+                .put(11, (byte) messages);
+        c.sentSequence[slot] = c.nextSequence;
+        c.sentTime[slot] = now;
+        c.sentMessageCount[slot] = messages;
+        c.nextSequence++;
+        c.lastSent = now;
+        c.ackPending = false;
+        out.flip();
+        transmit(out, c.address, now);
+    }
+
+    private void transmit(ByteBuffer datagram, SocketAddress target, long now) {
+        if (simulator != null) {
+            simulator.send(datagram, target, now);
+            return;
+        }
+        try {
+            channel.send(datagram, target); // A full socket buffer drops it, like any lost datagram
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Header, message lengths and every frame inside must check out before anything is delivered.
+    // Pieces of a reliable message are checked once they are joined, see deliverMessage.
+    private static boolean isWellFormed(ByteBuffer in) {
+        if (in.limit() < HEADER_SIZE || (in.getShort(0) & 0xFFFF) != MAGIC) return false;
+        int position = HEADER_SIZE;
+        int messages = in.get(11) & 0xFF;
+        for (int i = 0; i < messages; i++) {
+            if (position + MESSAGE_HEADER_SIZE > in.limit()) return false;
+            int lengthField = in.getShort(position + 2) & 0xFFFF;
+            int end = position + MESSAGE_HEADER_SIZE + (lengthField & LENGTH_MASK);
+            if (end > in.limit()) return false;
+            if ((lengthField & ~LENGTH_MASK) == 0 && !framesValid(in, position + MESSAGE_HEADER_SIZE, end)) return false;
+            position = end;
+        }
+        if ((in.get(10) & FLAG_PART) != 0) {
+            if (position + PART_HEADER_SIZE > in.limit()) return false;
+            int index = in.get(position) & 0xFF, count = in.get(position + 1) & 0xFF;
+            if (count == 0 || index >= count) return false;
+            position += PART_HEADER_SIZE;
+        }
+        return framesValid(in, position, in.limit());
+    }
+
+    private static boolean framesValid(ByteBuffer in, int start, int end) {
+        int frame = start;
+        while (frame < end) {
+            if (end - frame < Protocol.HEADER_SIZE) return false;
+            int size = Protocol.frameSize(in, frame);
+            if (size < Protocol.HEADER_SIZE || frame + size > end || !Protocol.isComplete(in, frame, size)) return false;
+            frame += size;
+        }
+        return true;
+    }
+}
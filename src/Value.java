@@ -9,8 +9,12 @@ public class Value {
 
     public static int waterFrameDurationMs=800;
 
-    public static final int WALK_SPEED = 2 ; // Slow walking speed (to match tile movement)
-    public static final int RUN_SPEED = 13; // Faster running speed
+    public static int TicksPerSecond = 60; // Fixed simulation rate of the game loop
+    public static int TargetFps = 60; // Render rate cap, 0 for uncapped
+    public static boolean BenchmarkMode = Boolean.getBoolean("abyss.benchmark"); // Uncapped, prints FPS/TPS every second
+
+    public static final int WALK_SPEED = 2 ; // Slow walking speed in pixels per tick (to match tile movement)
+    public static final int RUN_SPEED = 13; // Faster running speed in pixels per tick
     public static final int IDLE_ANIMATION_SPEED  = 20 ; // Animation speed for idle (higher = slower)
     public static final int WALKING_ANIMATION_SPEED = 10 ; // Animation speed for walking
     public static final int RUNNING_ANIMATION_SPEED = 8 ;// Animation speed for running (higher = faster)
@@ -26,6 +30,40 @@ public class Value {
 
     static String backgroundLayerPath = "Map/layer1.txt";
     static String collisionLayerPath = "Map/layer2.txt";
+    public static final int ChunkSize = 32; // Tiles per chunk side in the binary map format
+    public static int MaxLoadedChunks = 64; // Chunks kept in memory per layer before LRU eviction
+    public static int ChunkLoadRadius = 1; // Chunks around the camera loaded ahead on the background thread
+    public static int RenderChunkSize = 8; // Tiles per side of each pre-rendered background image
+    public static int MaxCachedChunkImages = 48; // Pre-rendered background images kept before LRU reuse
+    public static int AtlasPageSize = 1024; // Width and height of each sprite atlas page in pixels
+    public static int CompactEdits = 10000; // Saved edits after which the edit log is folded into the map file
+    public static int CompactIntervalSeconds = 60; // Or this long after the first edit in the log
+    public static int AssetLoaderThreads = Runtime.getRuntime().availableProcessors(); // Image decoding workers at startup
+    public static String SpriteCachePath = "cache/sprites"; // Decoded and scaled sprites, reused by later launches
+
+    // Multiplayer server
+    public static String ServerAddress = "45.76.193.42";
+    public static int ServerPort = 12345;
+    public static int ServerTickRate = 20; // Snapshots sent per second
+    public static int InterestRadius = 24; // Tiles around a player within which other players are sent to it
+    public static int SpawnTileX = 2, SpawnTileY = 2; // Where players join, moved to the nearest free tile if solid
+    public static int TileEditReach = 3; // Tiles from a player's server position within which its edits are accepted
+    public static int TileEditsPerSecond = 10; // Tile edits a client may send, more are dropped
+    public static int SnapshotHistory = 32; // Past snapshots kept as delta baselines, on the server and each client
+    public static int InterpolationDelayMs = 100; // Remote players are drawn this far in the past, two snapshots plus jitter
+    public static int MaxExtrapolationMs = 100; // How long a remote player keeps moving once its snapshots stop
+    public static int ServerIoThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); // Selector threads sharing the connections
+    public static boolean ServerVirtualThreads = false; // Serve each TCP connection with blocking virtual threads instead of the selectors
+    public static int ReadBufferSize = 8 * 1024; // Per connection, also the largest accepted frame
+    public static int WriteQueueHighWatermark = 256 * 1024; // Queued bytes at which a client's reads are paused
+    public static int WriteQueueLowWatermark = 64 * 1024; // Queued bytes at which paused reads resume
+    public static int WriteQueueLimit = 4 * 1024 * 1024; // Queued bytes at which a client is disconnected
+    public static boolean UseUdp = false; // Clients connect over UdpTransport instead of TCP; the server accepts both
+    public static int UdpPacketSize = 1200; // Largest datagram sent, below common path MTUs so IP never fragments it
+    public static int UdpTimeoutMs = 5000; // A UDP peer silent for this long is disconnected
+    public static int SimulatedLossPercent = 0; // NetworkSimulator settings, for testing UDP on one machine
+    public static int SimulatedLatencyMs = 0;
+    public static int SimulatedJitterMs = 0;
 
     // Resource strings for image paths
     static final String BACKGROUND_IMAGE_PATH = "/Menu/bgmainmenu.jpg";
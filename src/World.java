@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+// The game world without any of its images: the background layer (layer1), the collision layer
+// (layer2) and the collision bitset that movement is resolved against. Nothing here touches
+// AWT, so the server loads the same layer files headlessly and moves every player through the
+// same rules the client predicts with; GameMap and TileSetting only draw what is in here.
+// Each background chunk also has a version counting the server's edits to it (see
+// TileEditLog), which a client sends back to fetch only the edits it has not seen.
+// A persistent World saves background edits through a WorldStore, which also keeps the versions.
+public class World {
+
+    private final ChunkManager background;
+    private final ChunkManager collision;
+    private final CollisionGrid collisionGrid;
+    private final CollisionResolver collisionResolver;
+    private final int[] chunkVersions; // Background chunks, rows first
+    private final WorldStore store; // Null unless persistent
+
+    public World(String backgroundLayerPath, String collisionLayerPath, boolean persistent) {
+        store = persistent ? openStore(backgroundLayerPath) : null; // Replays saved edits into the map first
+        background = new ChunkManager(loadLayer(backgroundLayerPath), Value.MaxLoadedChunks);
+
+        // Non-zero collision tiles are solid, packed into a bitset for queries
+        ChunkedMap collisionMap = loadLayer(collisionLayerPath);
+        collisionGrid = CollisionGrid.fromMap(collisionMap, Value.TileSize);
+        collision = new ChunkManager(collisionMap, Value.MaxLoadedChunks);
+        collisionResolver = new CollisionResolver(collisionGrid);
+        chunkVersions = new int[background.getChunksX() * background.getChunksY()];
+        if (store != null && store.getVersions().length == chunkVersions.length) {
+            System.arraycopy(store.getVersions(), 0, chunkVersions, 0, chunkVersions.length);
+        } else if (!persistent) {
+            // The map file may hold offline edits the server never saw, so no chunk is known to
+            // match any server version; -1 makes the first subscription fetch it whole
+            Arrays.fill(chunkVersions, -1);
+        }
+    }
+
+    // The layers named in Value, as they are on disk, with every chunk version unknown (-1)
+    public static World load() {
+        return new World(Value.backgroundLayerPath, Value.collisionLayerPath, false);
+    }
+
+    // The layers named in Value, with edits to the background saved back into its map file
+    public static World loadPersistent() {
+        return new World(Value.backgroundLayerPath, Value.collisionLayerPath, true);
+    }
+
+    private static WorldStore openStore(String layerPath) {
+        try {
+            return WorldStore.open(MapConverter.ensureConverted(layerPath));
+        } catch (IOException e) {
+            System.err.println("Edits to " + layerPath + " will not be saved");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Converted to the binary format on first use; an empty map if that fails
+    private static ChunkedMap loadLayer(String layerPath) {
+        try {
+            return ChunkedMap.open(MapConverter.ensureConverted(layerPath));
+        } catch (IOException e) {
+            System.err.println("Failed to load map layer from " + layerPath);
+            e.printStackTrace();
+            return ChunkedMap.empty();
+        }
+    }
+
+    public ChunkManager getBackground() { return background; }
+    public ChunkManager getCollisionLayer() { return collision; }
+    public CollisionGrid getCollisionGrid() { return collisionGrid; }
+    public CollisionResolver getCollisionResolver() { return collisionResolver; }
+
+    public void setBackgroundTile(int x, int y, int tileID) {
+        background.setTile(x, y, tileID);
+        if (store != null) store.record(x, y, tileID);
+    }
+
+    public void setCollisionTile(int x, int y, int tileID) {
+        collision.setTile(x, y, tileID);
+        collisionGrid.setSolid(x, y, tileID != 0);
+    }
+
+    public boolean hasChunk(int chunkX, int chunkY) {
+        return chunkX >= 0 && chunkX < background.getChunksX() && chunkY >= 0 && chunkY < background.getChunksY();
+    }
+
+    // Index of a background chunk in rows-first order, for per-chunk arrays
+    public int chunkIndex(int chunkX, int chunkY) {
+        return chunkY * background.getChunksX() + chunkX;
+    }
+
+    public int getChunkVersion(int chunkX, int chunkY) { return chunkVersions[chunkIndex(chunkX, chunkY)]; }
+
+    public void setChunkVersion(int chunkX, int chunkY, int version) {
+        chunkVersions[chunkIndex(chunkX, chunkY)] = version;
+    }
+
+    // Saves what is still queued; a World that is not closed loses at most the last few edits
+    public void close() {
+        if (store != null) store.close();
+    }
+
+    // Top-left corner of the spot nearest (tileX, tileY), clamped to the map, where a player's
+    // hitbox touches no solid tile, searched ring by ring; the map's corner if nothing is free
+    public long findSpawn(int tileX, int tileY) {
+        int width = collisionGrid.getWidth(), height = collisionGrid.getHeight();
+        int tileSize = collisionGrid.getTileSize();
+        tileX = Math.max(0, Math.min(tileX, width - 1));
+        tileY = Math.max(0, Math.min(tileY, height - 1));
+        for (int radius = 0; radius < Math.max(width, height); radius++) {
+            for (int ty = tileY - radius; ty <= tileY + radius; ty++) {
+                for (int tx = tileX - radius; tx <= tileX + radius; tx++) {
+                    if (Math.max(Math.abs(tx - tileX), Math.abs(ty - tileY)) != radius) continue; // Ring only
+                    if (tx < 0 || tx >= width || ty < 0 || ty >= height) continue;
+                    int left = tx * tileSize + PlayerMovement.HITBOX_OFFSET, top = ty * tileSize + PlayerMovement.HITBOX_OFFSET;
+                    if (!collisionGrid.overlapsSolid(left, top, left + PlayerMovement.HITBOX_SIZE, top + PlayerMovement.HITBOX_SIZE)) {
+                        return CollisionResolver.pack(tx * tileSize, ty * tileSize);
+                    }
+                }
+            }
+        }
+        return CollisionResolver.pack(0, 0);
+    }
+
+    // Moves a player's top-left corner by one game loop tick of input, see PlayerMovement.step
+    public long step(int x, int y, int input) {
+        return PlayerMovement.step(collisionResolver, x, y, input);
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Saves tile edits into a binary map file (see ChunkedMap) without blocking whoever makes them.
+// record() only queues the edit; a background thread appends it to a write-ahead log next to the
+// map ("layer1.map.wal") and syncs each batch it writes, so a save costs the edits, not the map.
+// Every Value.CompactEdits edits, or Value.CompactIntervalSeconds after the first one, the log is
+// folded into the map: the map is copied, the chunks the log touches are patched in the copy, and
+// the copy is renamed over the map, so a crash leaves the old map or the new one, never half of
+// one. Only then is the log emptied. A log left behind by a crash is folded in the same way when
+// the map is next opened, and a torn last record fails its checksum and is dropped.
+// How many edits each chunk has had, the versions of TileEditLog, are kept in "layer1.map.versions".
+public class WorldStore {
+
+    private static final int LOG_MAGIC = 0x57594241; // "ABYW"
+    private static final int VERSIONS_MAGIC = 0x56594241; // "ABYV"
+    private static final int LOG_HEADER_SIZE = 4;
+    private static final int RECORD_SIZE = 14; // i32 tileX, i32 tileY, u16 tileID, i32 CRC32 of the ten bytes before it
+    private static final long STOP = -1; // Queued by close()
+
+    private final Path mapPath, logPath, versionsPath;
+    private final int width, height, chunkSize, chunksX;
+    private final long indexOffset;
+    private final int[] versions; // Writer thread once it runs
+    private final BlockingQueue<Long> edits = new LinkedBlockingQueue<>(); // tileX << 40 | tileY << 16 | tileID
+    private final Thread writer;
+
+    // Writer thread only
+    private FileChannel log;
+    private long logSize;
+    private int loggedEdits; // Since the last compaction
+    private long firstLoggedTime;
+    private boolean compactionFailed; // The map could not be replaced while open, fold the log in on the next start
+    private final ByteBuffer batch = ByteBuffer.allocate(RECORD_SIZE * 256).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+
+    private WorldStore(Path mapPath) throws IOException {
+        this.mapPath = mapPath;
+        this.logPath = mapPath.resolveSibling(mapPath.getFileName() + ".wal");
+        this.versionsPath = mapPath.resolveSibling(mapPath.getFileName() + ".versions");
+        try (FileChannel map = FileChannel.open(mapPath, StandardOpenOption.READ)) {
+            ByteBuffer header = readFully(map, 0, ChunkedMap.HEADER_SIZE);
+            if (header.getInt(0) != ChunkedMap.MAGIC) throw new IOException("Not a chunked map file: " + mapPath);
+            chunkSize = header.getShort(6);
+            width = header.getInt(8);
+            height = header.getInt(12);
+            chunksX = header.getInt(16);
+            versions = new int[chunksX * header.getInt(20)];
+            indexOffset = header.getLong(24);
+        }
+        writer = new Thread(this::writeLoop, "world-store");
+        writer.setDaemon(true);
+    }
+
+    // Folds in any log a crash left behind, then starts saving edits to the map
+    public static WorldStore open(Path mapPath) throws IOException {
+        WorldStore store = new WorldStore(mapPath);
+        store.recover();
+        store.writer.start();
+        return store;
+    }
+
+    // Drops the saved edits of a map that was converted again from its CSV
+    public static void discard(Path mapPath) throws IOException {
+        Files.deleteIfExists(mapPath.resolveSibling(mapPath.getFileName() + ".wal"));
+        Files.deleteIfExists(mapPath.resolveSibling(mapPath.getFileName() + ".versions"));
+    }
+
+    // Edits each background chunk has had, as of opening the store
+    public int[] getVersions() {
+        return versions.clone();
+    }
+
+    // Queues an edit to be saved; never blocks. Edits outside the map are ignored.
+    public void record(int tileX, int tileY, int tileID) {
+        if (tileX < 0 || tileX >= width || tileY < 0 || tileY >= height) return;
+        edits.add((long) tileX << 40 | (long) tileY << 16 | (tileID & 0xFFFF));
+    }
+
+    // Saves every queued edit and folds the log into the map
+    public void close() {
+        edits.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recover() throws IOException {
+        readVersions();
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (log.size() < LOG_HEADER_SIZE || readFully(log, 0, LOG_HEADER_SIZE).getInt(0) != LOG_MAGIC) {
+            log.truncate(0);
+            log.write(ByteBuffer.allocate(LOG_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).putInt(LOG_MAGIC).flip(), 0);
+            log.force(true);
+        }
+        List<Long> records = readLog();
+        for (long record : records) {
+            versions[chunkIndex(record)]++;
+        }
+        if (!records.isEmpty()) {
+            System.out.println("Replaying " + records.size() + " saved edits into " + mapPath);
+            compact(records);
+        }
+    }
+
+    private void writeLoop() {
+        List<Long> taken = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                Long first = edits.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    taken.add(first);
+                    edits.drainTo(taken, 255);
+                    stopping = taken.remove(Long.valueOf(STOP));
+                    if (!taken.isEmpty()) append(taken);
+                    taken.clear();
+                }
+                boolean due = loggedEdits >= Value.CompactEdits
+                        || loggedEdits > 0 && System.nanoTime() - firstLoggedTime >= Value.CompactIntervalSeconds * 1_000_000_000L;
+                if ((due || stopping && loggedEdits > 0) && !compactionFailed) compact(readLog());
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Failed to save map edits to " + logPath);
+                e.printStackTrace();
+            }
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Appends records to the log and syncs it, one write per batch
+    private void append(List<Long> records) throws IOException {
+        batch.clear();
+        for (long record : records) {
+            int start = batch.position();
+            batch.putInt(tileX(record)).putInt(tileY(record)).putShort((short) record);
+            crc.reset();
+            crc.update(batch.array(), start, RECORD_SIZE - 4);
+            batch.putInt((int) crc.getValue());
+            versions[chunkIndex(record)]++;
+        }
+        batch.flip();
+        while (batch.hasRemaining()) {
+            logSize += log.write(batch, logSize);
+        }
+        log.force(false);
+        if (loggedEdits == 0) firstLoggedTime = System.nanoTime();
+        loggedEdits += records.size();
+    }
+
+    // Every intact record in the log, in order; a torn tail is cut off
+    private List<Long> readLog() throws IOException {
+        List<Long> records = new ArrayList<>();
+        long size = log.size();
+        long position = LOG_HEADER_SIZE;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + RECORD_SIZE <= size) {
+            record.clear();
+            while (record.hasRemaining() && log.read(record, position + record.position()) > 0) {
+                // keep reading until the record is complete
+            }
+            crc.reset();
+            crc.update(record.array(), 0, RECORD_SIZE - 4);
+            int tileX = record.getInt(0), tileY = record.getInt(4);
+            if (record.getInt(RECORD_SIZE - 4) != (int) crc.getValue()
+                    || tileX < 0 || tileX >= width || tileY < 0 || tileY >= height) break;
+            records.add((long) tileX << 40 | (long) tileY << 16 | (record.getShort(8) & 0xFFFF));
+            position += RECORD_SIZE;
+        }
+        if (position < size) log.truncate(position);
+        logSize = position;
+        return records;
+    }
+
+    // Writes the map with records applied next to it, renames it over the map, then empties the log
+    private void compact(List<Long> records) throws IOException {
+        Path tmp = mapPath.resolveSibling(mapPath.getFileName() + ".tmp");
+        Files.copy(mapPath, tmp, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel map = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Each dirty chunk is read and written once, with its records applied in order
+            int chunkBytes = chunkSize * chunkSize * Short.BYTES;
+            Map<Integer, ByteBuffer> dirty = new LinkedHashMap<>();
+            for (long record : records) {
+                ByteBuffer chunk = dirty.get(chunkIndex(record));
+                if (chunk == null) {
+                    chunk = readFully(map, chunkOffset(map, chunkIndex(record)), chunkBytes);
+                    dirty.put(chunkIndex(record), chunk);
+                }
+                int local = tileY(record) % chunkSize * chunkSize + tileX(record) % chunkSize;
+                chunk.putShort(local * Short.BYTES, (short) record);
+            }
+            for (Map.Entry<Integer, ByteBuffer> entry : dirty.entrySet()) {
+                long offset = chunkOffset(map, entry.getKey());
+                ByteBuffer chunk = entry.getValue();
+                chunk.clear();
+                while (chunk.hasRemaining()) {
+                    map.write(chunk, offset + chunk.position());
+                }
+            }
+            map.force(true);
+        }
+
+        // Versions go first: if we stop before the log is emptied, replaying it only counts them
+        // too high, which makes clients fetch whole chunks rather than trust stale ones
+        writeVersions();
+        try {
+            Files.move(tmp, mapPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Windows will not replace a file that is mapped; the log stays until the next start
+            Files.deleteIfExists(tmp);
+            compactionFailed = true;
+            System.err.println("Could not replace " + mapPath + " while it is open, edits stay in " + logPath);
+            return;
+        }
+        log.truncate(LOG_HEADER_SIZE);
+        log.force(true);
+        logSize = LOG_HEADER_SIZE;
+        loggedEdits = 0;
+    }
+
+    private void readVersions() throws IOException {
+        if (!Files.exists(versionsPath)) return;
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(versionsPath)).order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() != 8 + versions.length * 4 || in.getInt() != VERSIONS_MAGIC || in.getInt() != versions.length) {
+            System.err.println("Ignoring " + versionsPath + ", it is for another map");
+            return;
+        }
+        in.asIntBuffer().get(versions);
+    }
+
+    private void writeVersions() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(8 + versions.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(VERSIONS_MAGIC).putInt(versions.length);
+        for (int version : versions) {
+            out.putInt(version);
+        }
+        out.flip();
+        Path tmp = versionsPath.resolveSibling(versionsPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, versionsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long chunkOffset(FileChannel map, int chunk) throws IOException {
+        return readFully(map, indexOffset + (long) chunk * Long.BYTES, Long.BYTES).getLong(0);
+    }
+
+    private int chunkIndex(long record) {
+        return tileY(record) / chunkSize * chunksX + tileX(record) / chunkSize;
+    }
+
+    private static int tileX(long record) { return (int) (record >>> 40); }
+    private static int tileY(long record) { return (int) (record >>> 16) & 0xFFFFFF; }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of file");
+        }
+        return buffer;
+    }
+}